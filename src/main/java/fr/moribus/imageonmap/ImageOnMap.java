@@ -37,6 +37,7 @@
 package fr.moribus.imageonmap;
 
 
+import fr.moribus.imageonmap.commands.maptool.CompactCommand;
 import fr.moribus.imageonmap.commands.maptool.DeleteCommand;
 import fr.moribus.imageonmap.commands.maptool.ExploreCommand;
 import fr.moribus.imageonmap.commands.maptool.GetCommand;
@@ -45,15 +46,28 @@ import fr.moribus.imageonmap.commands.maptool.GiveCommand;
 import fr.moribus.imageonmap.commands.maptool.ListCommand;
 import fr.moribus.imageonmap.commands.maptool.MigrateCommand;
 import fr.moribus.imageonmap.commands.maptool.NewCommand;
+import fr.moribus.imageonmap.commands.maptool.ReconcileCommand;
+import fr.moribus.imageonmap.commands.maptool.RefreshCommand;
 import fr.moribus.imageonmap.commands.maptool.RenameCommand;
+import fr.moribus.imageonmap.commands.maptool.SearchCommand;
 import fr.moribus.imageonmap.commands.maptool.UpdateCommand;
+import fr.moribus.imageonmap.image.FullImageStore;
 import fr.moribus.imageonmap.image.ImageIOExecutor;
 import fr.moribus.imageonmap.image.ImageRendererExecutor;
+import fr.moribus.imageonmap.image.MapAnimator;
 import fr.moribus.imageonmap.image.MapInitEvent;
+import fr.moribus.imageonmap.image.MapViewerTracker;
+import fr.moribus.imageonmap.image.RefreshScheduler;
+import fr.moribus.imageonmap.image.StorageReconciler;
+import fr.moribus.imageonmap.image.TileStore;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.PlayerResolver;
 import fr.moribus.imageonmap.migration.MigratorExecutor;
 import fr.moribus.imageonmap.migration.V3Migrator;
+import fr.moribus.imageonmap.ui.FramePlacer;
+import fr.moribus.imageonmap.ui.ItemFrameIndex;
 import fr.moribus.imageonmap.ui.MapItemManager;
+import fr.moribus.imageonmap.ui.MapItemTemplates;
 import fr.zcraft.quartzlib.components.commands.CommandWorkers;
 import fr.zcraft.quartzlib.components.commands.Commands;
 import fr.zcraft.quartzlib.components.gui.Gui;
@@ -106,6 +120,7 @@ public final class ImageOnMap extends QuartzPlugin {
         try {
             imagesDirectory = checkPluginDirectory(imagesDirectory, V3Migrator.getOldImagesDirectory(this));
             checkPluginDirectory(mapsDirectory);
+            TileStore.open(imagesDirectory);
         } catch (final IOException ex) {
             PluginLogger.error("FATAL: " + ex.getMessage());
             this.setEnabled(false);
@@ -116,17 +131,26 @@ public final class ImageOnMap extends QuartzPlugin {
         saveDefaultConfig();
         commandWorker = loadComponent(CommandWorkers.class);
         loadComponents(I18n.class, Gui.class, Commands.class, PluginConfiguration.class, ImageIOExecutor.class,
-                ImageRendererExecutor.class);
+                ImageRendererExecutor.class, PlayerResolver.class);
 
         //Init all the things !
         I18n.setPrimaryLocale(PluginConfiguration.LANG.get());
 
+        // The worlds are loaded already, and the chunks loaded later are indexed by events.
+        ItemFrameIndex.init();
+
         Bukkit.getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
             @Override
             public void run() {
                 MapManager.init();
+                PlayerResolver.init();
+                RefreshScheduler.init();
+                MapAnimator.init();
+                MapViewerTracker.init();
                 MapInitEvent.init();
                 MapItemManager.init();
+                StorageReconciler.init();
+                FullImageStore.init();
             }
         },20 * 30);
 
@@ -142,7 +166,11 @@ public final class ImageOnMap extends QuartzPlugin {
                 GetRemainingCommand.class,
                 ExploreCommand.class,
                 MigrateCommand.class,
-                UpdateCommand.class
+                UpdateCommand.class,
+                RefreshCommand.class,
+                CompactCommand.class,
+                SearchCommand.class,
+                ReconcileCommand.class
         );
 
         Commands.registerShortcut("maptool", NewCommand.class, "tomap");
@@ -156,11 +184,21 @@ public final class ImageOnMap extends QuartzPlugin {
 
     @Override
     public void onDisable() {
+        StorageReconciler.exit();
+        RefreshScheduler.exit();
+        MapAnimator.exit();
+        MapViewerTracker.exit();
+        PlayerResolver.exit();
         MapManager.exit();
         MapItemManager.exit();
+        MapItemTemplates.exit();
+        ItemFrameIndex.exit();
+        FramePlacer.exit();
+        FullImageStore.exit();
         //MigratorExecutor.waitForMigration();
 
         super.onDisable();
+        TileStore.close();
     }
 
     private File checkPluginDirectory(File primaryFile, File... alternateFiles) throws IOException {
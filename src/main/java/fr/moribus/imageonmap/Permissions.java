@@ -52,6 +52,7 @@ public enum Permissions {
     DELETEOTHER("imageonmap.deleteother"),
     UPDATE("imageonmap.update"),
     UPDATEOTHER("imageonmap.updateother"),
+    REFRESH("imageonmap.refresh"),
     ADMINISTRATIVE("imageonmap.administrative"),
     BYPASS_SIZE("imageonmap.bypasssize"),
     GIVE("imageonmap.give");
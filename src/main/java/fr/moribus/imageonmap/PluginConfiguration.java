@@ -38,6 +38,8 @@ package fr.moribus.imageonmap;
 
 import static fr.zcraft.quartzlib.components.configuration.ConfigurationItem.item;
 
+import fr.moribus.imageonmap.image.FullImageStore;
+import fr.moribus.imageonmap.map.MapStore.StorageFormat;
 import fr.zcraft.quartzlib.components.configuration.Configuration;
 import fr.zcraft.quartzlib.components.configuration.ConfigurationItem;
 import java.util.Locale;
@@ -54,6 +56,28 @@ public final class PluginConfiguration extends Configuration {
     public static ConfigurationItem<Integer> MAP_PLAYER_LIMIT = item("map-player-limit", 0, "Limit-map-by-player");
 
     public static ConfigurationItem<Boolean> SAVE_FULL_IMAGE = item("save-full-image", true);
+    public static ConfigurationItem<FullImageStore.Tier> FULL_IMAGE_FORMAT =
+            item("full-image-format", FullImageStore.Tier.INDEXED);
+    public static ConfigurationItem<Integer> FULL_IMAGE_QUOTA = item("full-image-quota", 0);
+    public static ConfigurationItem<Integer> FULL_IMAGE_RECOMPRESS_AFTER = item("full-image-recompress-after", 7);
+
+    public static ConfigurationItem<Integer> REFRESH_MIN_INTERVAL = item("refresh-min-interval", 60);
+    public static ConfigurationItem<Integer> REFRESH_MAX_CONCURRENT_POLLS = item("refresh-max-concurrent-polls", 2);
+
+    public static ConfigurationItem<StorageFormat> STORAGE_FORMAT = item("storage-format", StorageFormat.YAML);
+
+    public static ConfigurationItem<Integer> ANIMATION_MEMORY_BUDGET = item("animation-memory-budget", 64);
+    public static ConfigurationItem<Integer> ANIMATION_MAX_FPS = item("animation-max-fps", 20);
+
+    public static ConfigurationItem<Integer> RENDER_DISTANCE = item("render-distance", 64);
+    public static ConfigurationItem<Integer> RENDER_RELEASE_DELAY = item("render-release-delay", 30);
+
+    public static ConfigurationItem<Integer> PLACEMENT_FRAMES_PER_TICK = item("placement-frames-per-tick", 64);
+
+    public static ConfigurationItem<Integer> RECONCILER_RATE = item("reconciler-rate", 100);
+    public static ConfigurationItem<Integer> RECONCILER_INTERVAL = item("reconciler-interval", 24);
+    public static ConfigurationItem<Boolean> RECONCILER_RECLAIM = item("reconciler-reclaim", false);
+    public static ConfigurationItem<Integer> RECONCILER_REUSE_DELAY = item("reconciler-reuse-delay", 30);
 
 
     public static ConfigurationItem<Integer> LIMIT_SIZE_X = item("limit-map-size-x", 0);
@@ -38,6 +38,7 @@ package fr.moribus.imageonmap.commands;
 
 import fr.moribus.imageonmap.map.ImageMap;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.PlayerResolver;
 import fr.zcraft.quartzlib.components.commands.Command;
 import fr.zcraft.quartzlib.components.commands.CommandException;
 import fr.zcraft.quartzlib.components.i18n.I;
@@ -45,22 +46,29 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.function.Consumer;
-import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
 
 public abstract class IoMCommand extends Command {
-
+    /**
+     * The maximal number of map identifiers suggested by the tab completion.
+     */
+    private static final int MAX_COMPLETIONS = 100;
+
+    /**
+     * Resolves a player name without blocking, then calls the consumer on the main thread. If
+     * no player has this name, the sender is warned and the consumer is not called.
+     */
     protected void retrieveUUID(String arg, Consumer<UUID> consumer) {
-        UUID uuid;
-        OfflinePlayer offlinePlayer;
-
-        offlinePlayer = Bukkit.getOfflinePlayer(arg);//If it is being removed we may have to use mojang services
-        uuid = offlinePlayer.getUniqueId();
-
-        consumer.accept(uuid);
-
+        final CommandSender sender = this.sender;
+        PlayerResolver.resolve(arg, uuid -> {
+            if (uuid == null) {
+                warning(sender, I.t("No player found with the name {0}.", arg));
+                return;
+            }
+            consumer.accept(uuid);
+        });
     }
 
     protected ImageMap getMapFromArgs() throws CommandException {
@@ -147,7 +155,7 @@ public abstract class IoMCommand extends Command {
 
 
     protected List<String> getMatchingMapNames(Player player, String prefix) {
-        return getMatchingMapNames(MapManager.getMapList(player.getUniqueId()), prefix);
+        return MapManager.getMapIdsStartingWith(player.getUniqueId(), prefix, MAX_COMPLETIONS);
     }
 
     protected List<String> getMatchingMapNames(Iterable<? extends ImageMap> maps, String prefix) {
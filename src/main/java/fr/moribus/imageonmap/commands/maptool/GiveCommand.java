@@ -113,8 +113,8 @@ public class GiveCommand extends IoMCommand {
             retrieveUUID(playerName, uuid2 -> {
                 if (Bukkit.getPlayer((uuid2)) != null && Bukkit.getPlayer((uuid2)).isOnline()
                         && map.give(Bukkit.getPlayer(uuid2))) {
-                    info(I.t("The requested map was too big to fit in your inventory."));
-                    info(I.t("Use '/maptool getremaining' to get the remaining maps."));
+                    info(sender, I.t("The requested map was too big to fit in your inventory."));
+                    info(sender, I.t("Use '/maptool getremaining' to get the remaining maps."));
                 }
             });
         });
@@ -39,16 +39,21 @@ package fr.moribus.imageonmap.commands.maptool;
 import fr.moribus.imageonmap.Permissions;
 import fr.moribus.imageonmap.commands.IoMCommand;
 import fr.moribus.imageonmap.migration.MigratorExecutor;
+import fr.moribus.imageonmap.migration.V3Migrator;
 import fr.zcraft.quartzlib.components.commands.CommandException;
 import fr.zcraft.quartzlib.components.commands.CommandInfo;
 import fr.zcraft.quartzlib.components.i18n.I;
+import java.util.Collections;
+import java.util.List;
 import org.bukkit.command.CommandSender;
 
-@CommandInfo(name = "migrate")
+@CommandInfo(name = "migrate", usageParameters = "[status]")
 public class MigrateCommand extends IoMCommand {
     @Override
     protected void run() throws CommandException {
-        if (MigratorExecutor.isRunning()) {
+        if (args.length > 0 && "status".equalsIgnoreCase(args[0])) {
+            showStatus();
+        } else if (MigratorExecutor.isRunning()) {
             error(I.t("A migration process is already running. Check console for details."));
         } else {
             info(I.t("Migration started. See console for details."));
@@ -56,6 +61,28 @@ public class MigrateCommand extends IoMCommand {
         }
     }
 
+    private void showStatus() {
+        final V3Migrator migrator = MigratorExecutor.getMigrator();
+        if (migrator == null) {
+            info(I.t("No migration was started since the server started."));
+            return;
+        }
+
+        final long seconds = Math.max(1, migrator.getElapsedTime() / 1000);
+        info(I.t("{gray}Migration step: {0}", migrator.getStage().name().toLowerCase()));
+        info(I.t("{gray}Records: {0} of {1}, {2} per second, for {3} seconds",
+                migrator.getProcessedRecords(), migrator.getTotalRecords(),
+                migrator.getProcessedRecords() / seconds, seconds));
+    }
+
+    @Override
+    protected List<String> complete() throws CommandException {
+        if (args.length == 1 && "status".startsWith(args[0].toLowerCase())) {
+            return Collections.singletonList("status");
+        }
+        return null;
+    }
+
     @Override
     public boolean canExecute(CommandSender sender) {
         return sender.isOp() || Permissions.ADMINISTRATIVE.grantedTo(sender);
@@ -0,0 +1,104 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.commands.maptool;
+
+import fr.moribus.imageonmap.Permissions;
+import fr.moribus.imageonmap.commands.IoMCommand;
+import fr.moribus.imageonmap.image.FullImageStore;
+import fr.moribus.imageonmap.image.StorageReconciler;
+import fr.zcraft.quartzlib.components.commands.CommandException;
+import fr.zcraft.quartzlib.components.commands.CommandInfo;
+import fr.zcraft.quartzlib.components.i18n.I;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.command.CommandSender;
+
+@CommandInfo(name = "reconcile", usageParameters = "[start]")
+public class ReconcileCommand extends IoMCommand {
+    @Override
+    protected void run() throws CommandException {
+        if (args.length > 0) {
+            if (!args[0].equalsIgnoreCase("start")) {
+                throwInvalidArgument(I.t("Unknown action {0}.", args[0]));
+                return;
+            }
+            StorageReconciler.startPass();
+            info(I.t("A new storage check will start within a second."));
+            return;
+        }
+
+        final StorageReconciler.Phase phase = StorageReconciler.getPhase();
+        if (phase == StorageReconciler.Phase.IDLE) {
+            final long lastPassFinished = StorageReconciler.getLastPassFinished();
+            if (lastPassFinished == 0) {
+                info(I.t("The storage was never checked."));
+            } else {
+                info(I.t("Last storage check finished on {0}.", new Date(lastPassFinished)));
+            }
+        } else {
+            /// Progress of the storage check. 0 = phase (FILES, TILES or MAPS); 1 = percentage.
+            info(I.t("Storage check in progress: {0} ({1} %).", phase.name().toLowerCase(),
+                    (int) (StorageReconciler.getPhaseProgress() * 100)));
+        }
+
+        info(I.t("{0} orphaned files, {1} orphaned tiles, {2} maps with a missing image, {3} dangling map IDs.",
+                StorageReconciler.getOrphanedFileCount(), StorageReconciler.getOrphanedTileCount(),
+                StorageReconciler.getMissingImageCount(), StorageReconciler.getDanglingMapIDCount()));
+        info(I.t("{0} free map IDs available.", StorageReconciler.getFreeMapIDCount()));
+
+        for (Map.Entry<FullImageStore.Tier, long[]> usage : FullImageStore.getUsage().entrySet()) {
+            /// Disk usage of a storage tier of the full images. 0 = count; 1 = tier; 2 = size in KB.
+            info(I.t("{0} full images stored as {1}: {2} KB.", usage.getValue()[0],
+                    usage.getKey().name().toLowerCase(), usage.getValue()[1] / 1024));
+        }
+    }
+
+    @Override
+    protected List<String> complete() throws CommandException {
+        if (args.length == 1 && "start".startsWith(args[0].toLowerCase())) {
+            return Collections.singletonList("start");
+        }
+        return null;
+    }
+
+    @Override
+    public boolean canExecute(CommandSender sender) {
+        return sender.isOp() || Permissions.ADMINISTRATIVE.grantedTo(sender);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.commands.maptool;
+
+import fr.moribus.imageonmap.Permissions;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.commands.IoMCommand;
+import fr.moribus.imageonmap.image.ImageRendererExecutor;
+import fr.moribus.imageonmap.image.ImageUtils.ScalingType;
+import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.MapManager;
+import fr.zcraft.quartzlib.components.commands.CommandException;
+import fr.zcraft.quartzlib.components.commands.CommandInfo;
+import fr.zcraft.quartzlib.components.i18n.I;
+import fr.zcraft.quartzlib.components.worker.WorkerCallback;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+@CommandInfo(name = "refresh", usageParameters = "<map name> <url> <interval in seconds> [stretched|covered] | "
+        + "<map name> off")
+public class RefreshCommand extends IoMCommand {
+    @Override
+    protected void run() throws CommandException {
+        final ArrayList<String> arguments = getArgs();
+        final Player player = playerSender();
+
+        if (arguments.size() == 2 && arguments.get(1).equalsIgnoreCase("off")) {
+            final ImageMap map = MapManager.getMap(player.getUniqueId(), arguments.get(0));
+            if (map == null) {
+                error(I.t("This map does not exist."));
+                return;
+            }
+
+            MapManager.setMapSource(map, null, 0, ScalingType.CONTAINED);
+            success(I.t("The map {0} will no longer be refreshed.", map.getName()));
+            return;
+        }
+
+        if (arguments.size() < 3 || arguments.size() > 4) {
+            warning(I.t("Usage: /maptool refresh <map name> <url> <interval in seconds> [stretched|covered]"));
+            return;
+        }
+
+        final ImageMap map = MapManager.getMap(player.getUniqueId(), arguments.get(0));
+        if (map == null) {
+            error(I.t("This map does not exist."));
+            return;
+        }
+
+        final URL url;
+        try {
+            url = new URL(arguments.get(1));
+        } catch (MalformedURLException ex) {
+            throwInvalidArgument(I.t("Invalid URL."));
+            return;
+        }
+
+        int interval;
+        try {
+            interval = Integer.parseInt(arguments.get(2));
+        } catch (NumberFormatException ex) {
+            throwInvalidArgument(I.t("The refresh interval must be a number of seconds."));
+            return;
+        }
+        if (interval < PluginConfiguration.REFRESH_MIN_INTERVAL.get()) {
+            interval = PluginConfiguration.REFRESH_MIN_INTERVAL.get();
+            info(I.t("The refresh interval was raised to the minimum of {0} seconds.", interval));
+        }
+
+        final ScalingType scaling;
+        switch (arguments.size() == 4 ? arguments.get(3) : "") {
+            case "stretched":
+                scaling = ScalingType.STRETCHED;
+                break;
+            case "covered":
+                scaling = ScalingType.COVERED;
+                break;
+            default:
+                scaling = ScalingType.CONTAINED;
+        }
+
+        MapManager.setMapSource(map, url.toString(), interval, scaling);
+
+        final Integer[] size = ImageMap.getSize(map.getUserUUID(), map.getId());
+        final CommandSender commandSender = sender;
+        final int refreshInterval = interval;
+        ImageRendererExecutor.update(url, scaling, player.getUniqueId(), map, size[0], size[1],
+                new WorkerCallback<Integer>() {
+                    @Override
+                    public void finished(Integer skippedCount) {
+                        success(commandSender, I.t("The map {0} will be refreshed every {1} seconds.",
+                                map.getName(), refreshInterval));
+                    }
+
+                    @Override
+                    public void errored(Throwable exception) {
+                        warning(commandSender, I.t("The map {0} will be refreshed every {1} seconds, "
+                                + "but the image could not be loaded: {2}",
+                                map.getName(), refreshInterval, exception.getMessage()));
+                    }
+                });
+    }
+
+    @Override
+    protected List<String> complete() throws CommandException {
+        if (args.length == 1) {
+            return getMatchingMapNames(playerSender(), args[0]);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean canExecute(CommandSender sender) {
+        return Permissions.REFRESH.grantedTo(sender);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.commands.maptool;
+
+import fr.moribus.imageonmap.Permissions;
+import fr.moribus.imageonmap.commands.IoMCommand;
+import fr.moribus.imageonmap.gui.MapSearchGui;
+import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.MapSearchIndex;
+import fr.moribus.imageonmap.map.PlayerResolver;
+import fr.zcraft.quartzlib.components.commands.CommandException;
+import fr.zcraft.quartzlib.components.commands.CommandInfo;
+import fr.zcraft.quartzlib.components.gui.Gui;
+import fr.zcraft.quartzlib.components.i18n.I;
+import java.util.List;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+@CommandInfo(name = "search", usageParameters = "<text>")
+public class SearchCommand extends IoMCommand {
+    /**
+     * The maximal number of maps found by a search.
+     */
+    private static final int MAX_RESULTS = 1000;
+
+    /**
+     * The number of maps listed in the chat, when the search is not made by a player.
+     */
+    private static final int MAX_LISTED_RESULTS = 20;
+
+    @Override
+    protected void run() throws CommandException {
+        if (args.length == 0) {
+            throwInvalidArgument(I.t("You need to give the text to search."));
+            return;
+        }
+
+        final String query = String.join(" ", args);
+        final List<ImageMap> results = MapSearchIndex.search(query, MAX_RESULTS);
+
+        if (sender instanceof Player) {
+            Gui.open((Player) sender, new MapSearchGui(query, results));
+            return;
+        }
+
+        if (results.isEmpty()) {
+            info(I.t("No map found."));
+            return;
+        }
+
+        info(I.tn("{white}{bold}{0} map found.", "{white}{bold}{0} maps found.", results.size()));
+        for (ImageMap map : results.subList(0, Math.min(results.size(), MAX_LISTED_RESULTS))) {
+            final String ownerName = PlayerResolver.getName(map.getUserUUID());
+            info(I.t("{white}{0}{gray} - {1} ({2})", map.getId(), map.getName(),
+                    ownerName != null ? ownerName : map.getUserUUID()));
+        }
+    }
+
+    @Override
+    public boolean canExecute(CommandSender sender) {
+        return Permissions.LISTOTHER.grantedTo(sender);
+    }
+}
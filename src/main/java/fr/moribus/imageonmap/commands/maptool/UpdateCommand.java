@@ -153,6 +153,8 @@ public class UpdateCommand extends IoMCommand {
                 scaling = ImageUtils.ScalingType.CONTAINED;
         }
 
+        final CommandSender sender = this.sender;
+
         //TODO passer en static
         //ImageOnMap.getPlugin().getCommandWorker().offlineNameFetch(playerName, uuid -> {
         retrieveUUID(playerName, uuid -> {
@@ -167,14 +169,8 @@ public class UpdateCommand extends IoMCommand {
             URL url1;
             try {
                 url1 = new URL(url);
-                //TODO replace by a check of the load status.(if not loaded load the mapmanager)
-                MapManager.load(false);//we don't want to spam the console each time we reload the mapManager
-
-                Integer[] size = {1, 1};
-                if (map.getType() == ImageMap.Type.POSTER) {
-                    size = ImageMap.getSize(map.getUserUUID(), map.getId());
-                }
 
+                Integer[] size = ImageMap.getSize(map.getUserUUID(), map.getId());
                 int width = size[0];
                 int height = size[1];
                 try {
@@ -182,13 +178,16 @@ public class UpdateCommand extends IoMCommand {
                         ActionBar.sendPermanentMessage(playerSender, ChatColor.DARK_GREEN + I.t("Updating..."));
                     }
                     ImageRendererExecutor
-                            .update(url1, scaling, uuid, map, width, height, new WorkerCallback<ImageMap>() {
+                            .update(url1, scaling, uuid, map, width, height, new WorkerCallback<Integer>() {
                                 @Override
-                                public void finished(ImageMap result) {
+                                public void finished(Integer skippedCount) {
                                     if (playerSender != null) {
                                         ActionBar.removeMessage(playerSender);
                                         MessageSender.sendActionBarMessage(playerSender,
-                                                ChatColor.DARK_GREEN + I.t("The map was updated using the new image!"));
+                                                ChatColor.DARK_GREEN + I.t(
+                                                        "The map was updated using the new image! "
+                                                                + "({0} of {1} parts unchanged)",
+                                                        skippedCount, map.getMapCount()));
                                     }
                                 }
 
@@ -40,12 +40,15 @@ import fr.moribus.imageonmap.Permissions;
 import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.map.ImageMap;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.PlayerMapStore;
 import fr.moribus.imageonmap.map.PosterMap;
 import fr.moribus.imageonmap.map.SingleMap;
 import fr.moribus.imageonmap.ui.MapItemManager;
+import fr.moribus.imageonmap.ui.MapItemTemplates;
 import fr.moribus.imageonmap.ui.SplatterMapManager;
 import fr.zcraft.quartzlib.components.gui.ExplorerGui;
 import fr.zcraft.quartzlib.components.gui.Gui;
+import fr.zcraft.quartzlib.components.gui.GuiAction;
 import fr.zcraft.quartzlib.components.i18n.I;
 import fr.zcraft.quartzlib.tools.items.ItemStackBuilder;
 import org.bukkit.Color;
@@ -59,6 +62,17 @@ public class MapListGui extends ExplorerGui<ImageMap> {
     private final OfflinePlayer offplayer;
     private final String name;
 
+    /**
+     * The maps displayed, and the version of the player store they come from; they are only fetched
+     * again, with the statistics, when the store changed. The statistics also show the maps left
+     * on the whole server, so they are built again when the global map count changed, too.
+     */
+    private PlayerMapStore.SortOrder sortOrder = PlayerMapStore.SortOrder.CREATION;
+    private ImageMap[] maps = null;
+    private long mapsVersion = -1;
+    private ItemStack statistics = null;
+    private int globalMapCount = -1;
+
     public MapListGui(OfflinePlayer sender) {
         this.offplayer = sender;
         this.name = sender.getName();
@@ -71,6 +85,12 @@ public class MapListGui extends ExplorerGui<ImageMap> {
 
     @Override
     protected ItemStack getViewItem(ImageMap map) {
+        final boolean canGet = Permissions.GET.grantedTo(getPlayer());
+        return MapItemTemplates.get(map, "list:" + getPlayerLocale() + (canGet ? ":get" : ""),
+                () -> buildViewItem(map, canGet));
+    }
+
+    private ItemStack buildViewItem(ImageMap map, boolean canGet) {
         String mapDescription;
         if (map instanceof SingleMap) {
             /// Displayed subtitle description of a single map on the list GUI
@@ -97,7 +117,7 @@ public class MapListGui extends ExplorerGui<ImageMap> {
                 .lore(I.tl(getPlayerLocale(), "{gray}Map ID: {0}", map.getId()))
                 .loreLine();
 
-        if (Permissions.GET.grantedTo(getPlayer())) {
+        if (canGet) {
             builder.lore(I.tl(getPlayerLocale(), "{gray}» {white}Left-click{gray} to get this map"));
         }
 
@@ -148,7 +168,7 @@ public class MapListGui extends ExplorerGui<ImageMap> {
         }
 
         if (map instanceof SingleMap) {
-            return MapItemManager.createMapItem(map.getMapsIDs()[0], map.getName(), false, true);
+            return MapItemManager.createMapItem((SingleMap) map, true);
         } else if (map instanceof PosterMap) {
             PosterMap poster = (PosterMap) map;
 
@@ -166,8 +186,20 @@ public class MapListGui extends ExplorerGui<ImageMap> {
 
     @Override
     protected void onUpdate() {
-        ImageMap[] maps = MapManager.getMaps(offplayer.getUniqueId());
-        setData(maps);
+        final long version = MapManager.getMapsVersion(offplayer.getUniqueId());
+        if (maps == null || version != mapsVersion) {
+            maps = MapManager.getSortedMaps(offplayer.getUniqueId(), sortOrder);
+            mapsVersion = version;
+            statistics = null;
+            setData(maps);
+        }
+
+        final int mapCount = MapManager.getMapCount();
+        if (statistics == null || mapCount != globalMapCount) {
+            statistics = buildStatistics(mapCount);
+            globalMapCount = mapCount;
+        }
+
         /// The maps list GUI title
         //Equal if the person who send the command is the owner of the mapList
         if (offplayer.getUniqueId().equals(getPlayer().getUniqueId())) {
@@ -178,15 +210,33 @@ public class MapListGui extends ExplorerGui<ImageMap> {
 
         setKeepHorizontalScrollingSpace(true);
 
+        action("", getSize() - 5, statistics);
+        action("sort", getSize() - 6, new ItemStackBuilder(Material.HOPPER)
+                .title(I.t(getPlayerLocale(), "{blue}Sort maps"))
+                .lore(sortOrder == PlayerMapStore.SortOrder.NAME
+                        ? I.t(getPlayerLocale(), "{gray}Maps are sorted by name.")
+                        : I.t(getPlayerLocale(), "{gray}Maps are sorted by creation date."))
+                .lore(I.t(getPlayerLocale(), "{gray}» {white}Click{gray} to change"))
+        );
+    }
+
+    @GuiAction("sort")
+    public void sort() {
+        sortOrder = sortOrder == PlayerMapStore.SortOrder.NAME
+                ? PlayerMapStore.SortOrder.CREATION : PlayerMapStore.SortOrder.NAME;
+        maps = null;
+        update();
+    }
 
+    private ItemStack buildStatistics(int mapCount) {
         /* ** Statistics ** */
-        int imagesCount = MapManager.getMapList(offplayer.getUniqueId()).size();
+        int imagesCount = MapManager.getImagesCount(offplayer.getUniqueId());
         int mapPartCount = MapManager.getMapPartCount(offplayer.getUniqueId());
 
         int mapGlobalLimit = PluginConfiguration.MAP_GLOBAL_LIMIT.get();
         int mapPersonalLimit = PluginConfiguration.MAP_PLAYER_LIMIT.get();
 
-        int mapPartGloballyLeft = mapGlobalLimit - MapManager.getMapCount();
+        int mapPartGloballyLeft = mapGlobalLimit - mapCount;
         int mapPartPersonallyLeft = mapPersonalLimit - mapPartCount;
 
         int mapPartLeft;
@@ -203,7 +253,7 @@ public class MapListGui extends ExplorerGui<ImageMap> {
         double percentageUsed =
                 mapPartLeft < 0 ? 0 : ((double) mapPartCount) / ((double) (mapPartCount + mapPartLeft)) * 100;
 
-        ItemStackBuilder statistics = new ItemStackBuilder(Material.ENCHANTED_BOOK)
+        ItemStackBuilder builder = new ItemStackBuilder(Material.ENCHANTED_BOOK)
                 .title(I.t(getPlayerLocale(), "{blue}Usage statistics"))
                 .loreLine()
                 .lore(I.tn(getPlayerLocale(), "{white}{0}{gray} image rendered", "{white}{0}{gray} images rendered",
@@ -212,7 +262,7 @@ public class MapListGui extends ExplorerGui<ImageMap> {
                         "{white}{0}{gray} Minecraft maps used", mapPartCount));
 
         if (mapPartLeft >= 0) {
-            statistics
+            builder
                     .lore("", I.t(getPlayerLocale(), "{blue}Minecraft maps limits"), "")
                     .lore(mapGlobalLimit == 0
                             ? I.t(getPlayerLocale(), "{gray}Server-wide limit: {white}unlimited")
@@ -227,8 +277,8 @@ public class MapListGui extends ExplorerGui<ImageMap> {
                             mapPartLeft));
         }
 
-        statistics.hideAllAttributes();
+        builder.hideAllAttributes();
 
-        action("", getSize() - 5, statistics);
+        return builder.item();
     }
 }
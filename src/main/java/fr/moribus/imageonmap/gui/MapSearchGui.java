@@ -0,0 +1,132 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.gui;
+
+import fr.moribus.imageonmap.Permissions;
+import fr.moribus.imageonmap.map.ImageMap;
+import fr.moribus.imageonmap.map.PlayerResolver;
+import fr.moribus.imageonmap.map.PosterMap;
+import fr.moribus.imageonmap.map.SingleMap;
+import fr.moribus.imageonmap.ui.MapItemManager;
+import fr.moribus.imageonmap.ui.SplatterMapManager;
+import fr.zcraft.quartzlib.components.gui.ExplorerGui;
+import fr.zcraft.quartzlib.components.gui.Gui;
+import fr.zcraft.quartzlib.components.i18n.I;
+import fr.zcraft.quartzlib.tools.items.ItemStackBuilder;
+import java.util.List;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+
+/**
+ * Lists the maps of all players matching a search, see {@link fr.moribus.imageonmap.map.MapSearchIndex}.
+ */
+public class MapSearchGui extends ExplorerGui<ImageMap> {
+    private final String query;
+    private final ImageMap[] results;
+
+    public MapSearchGui(String query, List<ImageMap> results) {
+        this.query = query;
+        this.results = results.toArray(new ImageMap[0]);
+    }
+
+    @Override
+    protected ItemStack getViewItem(ImageMap map) {
+        String ownerName = PlayerResolver.getName(map.getUserUUID());
+        if (ownerName == null) {
+            ownerName = map.getUserUUID().toString();
+        }
+
+        final ItemStackBuilder builder = new ItemStackBuilder(Material.FILLED_MAP)
+                .title(I.tl(getPlayerLocale(), "{green}{bold}{0}", map.getName()))
+                /// Owner of a map in the search results GUI
+                .lore(I.tl(getPlayerLocale(), "{gray}Owner: {white}{0}", ownerName))
+                .lore(I.tl(getPlayerLocale(), "{gray}Map ID: {0}", map.getId()))
+                .loreLine();
+
+        if (Permissions.GETOTHER.grantedTo(getPlayer())) {
+            builder.lore(I.tl(getPlayerLocale(), "{gray}» {white}Left-click{gray} to get this map"));
+        }
+
+        return builder
+                .lore(I.tl(getPlayerLocale(), "{gray}» {white}Right-click{gray} for details and options"))
+                .hideAllAttributes()
+                .item();
+    }
+
+    @Override
+    protected ItemStack getEmptyViewItem() {
+        return new ItemStackBuilder(Material.BARRIER)
+                .title(I.tl(getPlayerLocale(), "{red}No map found."))
+                .item();
+    }
+
+    @Override
+    protected void onRightClick(ImageMap map) {
+        final String ownerName = PlayerResolver.getName(map.getUserUUID());
+        Gui.open(getPlayer(), new MapDetailGui(map, Bukkit.getOfflinePlayer(map.getUserUUID()),
+                ownerName != null ? ownerName : map.getUserUUID().toString()), this);
+    }
+
+    @Override
+    protected ItemStack getPickedUpItem(ImageMap map) {
+        if (!Permissions.GETOTHER.grantedTo(getPlayer())) {
+            return null;
+        }
+
+        if (map instanceof SingleMap) {
+            return MapItemManager.createMapItem((SingleMap) map, true);
+        }
+
+        final PosterMap poster = (PosterMap) map;
+        if (poster.hasColumnData()) {
+            return SplatterMapManager.makeSplatterMap(poster);
+        }
+
+        MapItemManager.giveParts(getPlayer(), poster);
+        return null;
+    }
+
+    @Override
+    protected void onUpdate() {
+        setData(results);
+        /// The title of the search results GUI. 0 = searched text, 1 = number of maps found.
+        setTitle(I.tl(getPlayerLocale(), "{black}Search: {0} {reset}({1})", query, results.length));
+        setKeepHorizontalScrollingSpace(true);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * The frames of an animated GIF, composed on the logical screen of the image like a browser
+ * would display them, and converted to map colors as they are decoded.
+ */
+public final class AnimatedImage {
+    private static final String IMAGE_METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+    private static final String STREAM_METADATA_FORMAT = "javax_imageio_gif_stream_1.0";
+
+    /**
+     * The delay used for frames without one, in hundredths of a second, as browsers do.
+     */
+    private static final int DEFAULT_DELAY = 10;
+
+    private final PosterImage firstFrame;
+    private final List<byte[][]> frames;
+    private final int[] delays;
+
+    private AnimatedImage(PosterImage firstFrame, List<byte[][]> frames, int[] delays) {
+        this.firstFrame = firstFrame;
+        this.frames = frames;
+        this.delays = delays;
+    }
+
+    /**
+     * Checks if the given bytes are a GIF image.
+     *
+     * @param data The image file.
+     * @return true if the data starts with a GIF signature.
+     */
+    public static boolean isGif(byte[] data) {
+        return data.length > 6 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8';
+    }
+
+    /**
+     * Decodes an animated GIF. Only the map colors of the kept frames stay in memory, so they
+     * cost {@link MapColorArena#TILE_SIZE} bytes per tile and per frame.
+     *
+     * @param data         The GIF file.
+     * @param maxFrames    The maximal number of frames to keep. When the GIF has more frames,
+     *                     frames are dropped evenly, and their delays added to the kept ones.
+     * @param maxImageSize The maximal memory used by the logical screen while decoding, in bytes.
+     * @param resizer      Resizes a frame to the size of the map. It must not keep the given image.
+     * @return the animation, or {@code null} if the image is not a GIF, has a single frame or a
+     *     logical screen over {@code maxImageSize}, or if {@code maxFrames} is below two.
+     * @throws IOException if the GIF cannot be decoded.
+     */
+    public static AnimatedImage read(byte[] data, int maxFrames, long maxImageSize,
+                                     UnaryOperator<BufferedImage> resizer) throws IOException {
+        // With less than two frames, the animation would be dropped anyway: don't decode it.
+        if (!isGif(data) || maxFrames < 2) {
+            return null;
+        }
+
+        final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("gif");
+        if (!readers.hasNext()) {
+            return null;
+        }
+
+        final ImageReader reader = readers.next();
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            reader.setInput(input, false, false);
+
+            final int frameCount = reader.getNumImages(true);
+            if (frameCount < 2) {
+                return null;
+            }
+
+            // The canvas, and its copy for the frames restoring the previous one.
+            final long imageSize = 2L * getScreenWidth(reader) * getScreenHeight(reader) * Integer.BYTES;
+            if (imageSize > maxImageSize) {
+                return null;
+            }
+
+            final int step = (frameCount + maxFrames - 1) / maxFrames;
+            final List<byte[][]> frames = new ArrayList<>();
+            final int[] delays = new int[(frameCount + step - 1) / step];
+
+            PosterImage firstFrame = null;
+            BufferedImage canvas = new BufferedImage(getScreenWidth(reader), getScreenHeight(reader),
+                    BufferedImage.TYPE_INT_ARGB);
+            for (int i = 0; i < frameCount; i++) {
+                if (2L * reader.getWidth(i) * reader.getHeight(i) * Integer.BYTES > maxImageSize) {
+                    return null;
+                }
+
+                final BufferedImage frame = reader.read(i);
+                final IIOMetadataNode metadata =
+                        (IIOMetadataNode) reader.getImageMetadata(i).getAsTree(IMAGE_METADATA_FORMAT);
+                final IIOMetadataNode descriptor = getChild(metadata, "ImageDescriptor");
+                final IIOMetadataNode control = getChild(metadata, "GraphicControlExtension");
+
+                final int left = getIntAttribute(descriptor, "imageLeftPosition", 0);
+                final int top = getIntAttribute(descriptor, "imageTopPosition", 0);
+                final int delay = getIntAttribute(control, "delayTime", 0);
+                final String disposal = control != null ? control.getAttribute("disposalMethod") : "none";
+
+                final BufferedImage previous = "restoreToPrevious".equals(disposal) ? copy(canvas) : null;
+
+                final Graphics2D graphics = canvas.createGraphics();
+                graphics.drawImage(frame, left, top, null);
+                graphics.dispose();
+                frame.flush();
+
+                if (i % step == 0) {
+                    BufferedImage resized = resizer.apply(canvas);
+                    if (firstFrame == null && resized == canvas) {
+                        resized = copy(canvas);
+                    }
+
+                    final PosterImage poster = new PosterImage(resized);
+                    poster.splitImages();
+                    frames.add(getColors(poster));
+
+                    if (firstFrame == null) {
+                        firstFrame = poster;
+                    } else if (resized != canvas) {
+                        resized.flush();//Safe to free
+                    }
+                }
+                delays[i / step] += delay > 0 ? delay : DEFAULT_DELAY;
+
+                if (previous != null) {
+                    canvas = previous;
+                } else if ("restoreToBackgroundColor".equals(disposal)) {
+                    final Graphics2D clear = canvas.createGraphics();
+                    clear.setComposite(AlphaComposite.Clear);
+                    clear.fillRect(left, top, frame.getWidth(), frame.getHeight());
+                    clear.dispose();
+                }
+            }
+
+            return new AnimatedImage(firstFrame, frames, delays);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static int getScreenWidth(ImageReader reader) throws IOException {
+        return Math.max(reader.getWidth(0), getScreenAttribute(reader, "logicalScreenWidth"));
+    }
+
+    private static int getScreenHeight(ImageReader reader) throws IOException {
+        return Math.max(reader.getHeight(0), getScreenAttribute(reader, "logicalScreenHeight"));
+    }
+
+    private static int getScreenAttribute(ImageReader reader, String name) throws IOException {
+        final IIOMetadata streamMetadata = reader.getStreamMetadata();
+        if (streamMetadata == null) {
+            return 0;
+        }
+        final IIOMetadataNode screen = getChild(
+                (IIOMetadataNode) streamMetadata.getAsTree(STREAM_METADATA_FORMAT), "LogicalScreenDescriptor");
+        return getIntAttribute(screen, name, 0);
+    }
+
+    private static byte[][] getColors(PosterImage poster) {
+        final byte[][] colors = new byte[poster.getImagesCount()][];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = poster.getColorsAt(i);
+        }
+        return colors;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        final BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        copy.setData(image.getRaster());
+        return copy;
+    }
+
+    private static IIOMetadataNode getChild(IIOMetadataNode node, String name) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (name.equals(child.getNodeName())) {
+                return (IIOMetadataNode) child;
+            }
+        }
+        return null;
+    }
+
+    private static int getIntAttribute(IIOMetadataNode node, String name, int defaultValue) {
+        if (node == null || !node.hasAttribute(name)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(node.getAttribute(name));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the map colors of each frame, tile by tile.
+     */
+    public List<byte[][]> getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the delay of each frame, in hundredths of a second.
+     */
+    public int[] getDelays() {
+        return delays;
+    }
+
+    /**
+     * @return the first frame, resized, with its map colors.
+     */
+    public PosterImage getFirstFrame() {
+        return firstFrame;
+    }
+
+    public void flush() {
+        firstFrame.getImage().flush();
+    }
+}
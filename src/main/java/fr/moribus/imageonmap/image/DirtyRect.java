@@ -0,0 +1,90 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.map.ImageMap;
+
+/**
+ * The rectangle of pixels of a tile that changed, packed into an {@code int} (one byte for each
+ * of the left, top, right and bottom bounds, all inclusive), so it can be kept for every change
+ * without any allocation.
+ */
+public final class DirtyRect {
+    /**
+     * Nothing changed.
+     */
+    public static final int EMPTY = -1;
+
+    /**
+     * The whole tile changed.
+     */
+    public static final int FULL = of(0, 0, ImageMap.WIDTH - 1, ImageMap.HEIGHT - 1);
+
+    private DirtyRect() {
+    }
+
+    public static int of(int left, int top, int right, int bottom) {
+        return left << 24 | top << 16 | right << 8 | bottom;
+    }
+
+    public static int union(int rect, int otherRect) {
+        if (rect == EMPTY) {
+            return otherRect;
+        }
+        if (otherRect == EMPTY) {
+            return rect;
+        }
+        return of(Math.min(getLeft(rect), getLeft(otherRect)), Math.min(getTop(rect), getTop(otherRect)),
+                Math.max(getRight(rect), getRight(otherRect)), Math.max(getBottom(rect), getBottom(otherRect)));
+    }
+
+    public static int getLeft(int rect) {
+        return rect >>> 24;
+    }
+
+    public static int getTop(int rect) {
+        return (rect >>> 16) & 0xFF;
+    }
+
+    public static int getRight(int rect) {
+        return (rect >>> 8) & 0xFF;
+    }
+
+    public static int getBottom(int rect) {
+        return rect & 0xFF;
+    }
+}
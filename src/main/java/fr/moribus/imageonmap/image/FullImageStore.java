@@ -0,0 +1,388 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.ImageIO;
+import org.bukkit.Bukkit;
+import org.bukkit.map.MapPalette;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Stores the full images of the maps, kept when {@code save-full-image} is enabled.
+ *
+ * <p>The full images are rarely read, so they are stored as cheaply as possible, in one of
+ * these tiers:</p>
+ * <ul>
+ *     <li>{@link Tier#PNG}: the image as rendered, in an ARGB PNG;</li>
+ *     <li>{@link Tier#INDEXED}: the map colors of the image, in an indexed PNG using the map
+ *     palette, still readable by any image viewer;</li>
+ *     <li>{@link Tier#DEFLATED}: the raw map colors, compressed at the maximal level.</li>
+ * </ul>
+ *
+ * <p>New images are saved in the {@code full-image-format} tier, and the images older than
+ * {@code full-image-recompress-after} days are moved to the deflated tier in the background.
+ * When the full images use more than {@code full-image-quota} megabytes, the oldest ones are
+ * deleted. All the methods touching the files run on the image IO worker.</p>
+ */
+public final class FullImageStore {
+    public enum Tier {
+        PNG("png"),
+        INDEXED("indexed.png"),
+        DEFLATED("iomz");
+
+        private final String extension;
+
+        Tier(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private static final Pattern FILE_NAME = Pattern.compile("_(-?[0-9]+)-(-?[0-9]+)\\.(png|indexed\\.png|iomz)");
+
+    private static final int MAGIC = 0x494F4D46;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The number of images recompressed at most each period, so the IO worker is never busy for long.
+     */
+    private static final int RECOMPRESSION_BATCH = 4;
+    private static final long RECOMPRESSION_PERIOD = 20L * 60 * 5;
+
+    private static final Map<String, Entry> entries = new HashMap<>();
+    private static IndexColorModel palette = null;
+    private static BukkitTask recompressionTask = null;
+
+    private FullImageStore() {
+    }
+
+    public static void init() {
+        ImageIOExecutor.scanFullImages();
+
+        if (PluginConfiguration.FULL_IMAGE_RECOMPRESS_AFTER.get() > 0) {
+            recompressionTask = Bukkit.getScheduler().runTaskTimer(ImageOnMap.getPlugin(),
+                    ImageIOExecutor::recompressFullImages, RECOMPRESSION_PERIOD, RECOMPRESSION_PERIOD);
+        }
+    }
+
+    public static synchronized void exit() {
+        if (recompressionTask != null) {
+            recompressionTask.cancel();
+            recompressionTask = null;
+        }
+        entries.clear();
+    }
+
+    /**
+     * Parses the name of a full image file.
+     *
+     * @param fileName The file name.
+     * @return the first and last map IDs of the image, or {@code null} if this is not a full image.
+     */
+    public static int[] parseFileName(String fileName) {
+        final Matcher matcher = FILE_NAME.matcher(fileName);
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            return new int[] {Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static File getFile(int mapIDstart, int mapIDend, Tier tier) {
+        return new File(ImageOnMap.getPlugin().getImagesDirectory(),
+                "_" + mapIDstart + "-" + mapIDend + "." + tier.extension);
+    }
+
+    /**
+     * Lists the full images of the images directory.
+     */
+    static synchronized void scan() {
+        entries.clear();
+        final File[] files = ImageOnMap.getPlugin().getImagesDirectory().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            final int[] mapsIDs = parseFileName(file.getName());
+            if (mapsIDs == null) {
+                continue;
+            }
+            final Matcher matcher = FILE_NAME.matcher(file.getName());
+            matcher.matches();
+            for (Tier tier : Tier.values()) {
+                if (tier.extension.equals(matcher.group(3))) {
+                    put(new Entry(mapsIDs[0], mapsIDs[1], tier, file.length(), file.lastModified()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the full image of a map, replacing the previous one.
+     *
+     * @param mapIDstart The first map ID of the map.
+     * @param mapIDend   The last map ID of the map.
+     * @param image      The image.
+     * @throws IOException if the image cannot be written.
+     */
+    static synchronized void save(int mapIDstart, int mapIDend, BufferedImage image) throws IOException {
+        delete(mapIDstart, mapIDend);
+
+        final Tier tier = PluginConfiguration.FULL_IMAGE_FORMAT.get();
+        final File file = write(mapIDstart, mapIDend, image, tier);
+        put(new Entry(mapIDstart, mapIDend, tier, file.length(), file.lastModified()));
+        enforceQuota();
+    }
+
+    static synchronized void delete(int mapIDstart, int mapIDend) throws IOException {
+        entries.remove(mapIDstart + "-" + mapIDend);
+        for (Tier tier : Tier.values()) {
+            Files.deleteIfExists(getFile(mapIDstart, mapIDend, tier).toPath());
+        }
+    }
+
+    /**
+     * Moves a few of the images older than {@code full-image-recompress-after} days to the
+     * deflated tier.
+     */
+    static synchronized void recompressOldImages() {
+        final int days = PluginConfiguration.FULL_IMAGE_RECOMPRESS_AFTER.get();
+        if (days <= 0) {
+            return;
+        }
+
+        final long olderThan = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+        final List<Entry> oldEntries = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.tier != Tier.DEFLATED && entry.modified < olderThan) {
+                oldEntries.add(entry);
+            }
+        }
+        oldEntries.sort(Comparator.comparingLong(entry -> entry.modified));
+
+        for (Entry entry : oldEntries.subList(0, Math.min(RECOMPRESSION_BATCH, oldEntries.size()))) {
+            final File oldFile = getFile(entry.mapIDstart, entry.mapIDend, entry.tier);
+            try {
+                final BufferedImage image = ImageIO.read(oldFile);
+                if (image == null) {
+                    PluginLogger.warning("Could not read the full image {0}", oldFile.getName());
+                    continue;
+                }
+                final File file = write(entry.mapIDstart, entry.mapIDend, image, Tier.DEFLATED);
+                image.flush();
+                Files.deleteIfExists(oldFile.toPath());
+
+                // The image keeps its age, so the oldest images are still deleted first, even
+                // after a restart.
+                if (!file.setLastModified(entry.modified)) {
+                    PluginLogger.warning("Could not keep the age of the full image {0}", file.getName());
+                }
+                put(new Entry(entry.mapIDstart, entry.mapIDend, Tier.DEFLATED, file.length(), entry.modified));
+            } catch (IOException ex) {
+                PluginLogger.warning("Could not recompress the full image {0}: {1}", oldFile.getName(),
+                        ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest full images until they fit in {@code full-image-quota} megabytes.
+     */
+    private static void enforceQuota() throws IOException {
+        final long quota = PluginConfiguration.FULL_IMAGE_QUOTA.get() * 1024L * 1024L;
+        if (quota <= 0) {
+            return;
+        }
+
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.size;
+        }
+        if (total <= quota) {
+            return;
+        }
+
+        final List<Entry> sortedEntries = new ArrayList<>(entries.values());
+        sortedEntries.sort(Comparator.comparingLong(entry -> entry.modified));
+        for (Entry entry : sortedEntries) {
+            if (total <= quota) {
+                break;
+            }
+            delete(entry.mapIDstart, entry.mapIDend);
+            total -= entry.size;
+        }
+    }
+
+    private static File write(int mapIDstart, int mapIDend, BufferedImage image, Tier tier) throws IOException {
+        final File file = getFile(mapIDstart, mapIDend, tier);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+
+        switch (tier) {
+            case INDEXED:
+                ImageIO.write(toIndexedImage(image), "png", tmpFile);
+                break;
+            case DEFLATED:
+                writeDeflated(tmpFile, image);
+                break;
+            default:
+                ImageIO.write(image, "png", tmpFile);
+                break;
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static BufferedImage toIndexedImage(BufferedImage image) {
+        final BufferedImage indexedImage = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_BYTE_INDEXED, getPalette());
+        indexedImage.getRaster().setDataElements(0, 0, image.getWidth(), image.getHeight(),
+                MapPalette.imageToBytes(image));
+        return indexedImage;
+    }
+
+    /**
+     * Writes the map colors of an image, compressed: a header (magic number, format version,
+     * width, height) followed by the deflated colors, one byte per pixel.
+     */
+    @SuppressWarnings("deprecation")
+    private static void writeDeflated(File file, BufferedImage image) throws IOException {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (OutputStream stream = Files.newOutputStream(file.toPath());
+             DataOutputStream output = new DataOutputStream(stream)) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(image.getWidth());
+            output.writeInt(image.getHeight());
+
+            final DeflaterOutputStream deflated = new DeflaterOutputStream(output, deflater);
+            deflated.write(MapPalette.imageToBytes(image));
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the map palette, as a color model for indexed images.
+     */
+    @SuppressWarnings("deprecation")
+    private static IndexColorModel getPalette() {
+        if (palette == null) {
+            final byte[] red = new byte[256];
+            final byte[] green = new byte[256];
+            final byte[] blue = new byte[256];
+            final byte[] alpha = new byte[256];
+            for (int i = 0; i < 256; i++) {
+                try {
+                    final Color color = MapPalette.getColor((byte) i);
+                    red[i] = (byte) color.getRed();
+                    green[i] = (byte) color.getGreen();
+                    blue[i] = (byte) color.getBlue();
+                    alpha[i] = (byte) color.getAlpha();
+                } catch (IndexOutOfBoundsException ex) {
+                    // Not a map color, left transparent.
+                }
+            }
+            palette = new IndexColorModel(8, 256, red, green, blue, alpha);
+        }
+        return palette;
+    }
+
+    private static void put(Entry entry) {
+        entries.put(entry.mapIDstart + "-" + entry.mapIDend, entry);
+    }
+
+    /**
+     * @return the number of full images and the bytes they use, for each tier.
+     */
+    public static synchronized Map<Tier, long[]> getUsage() {
+        final Map<Tier, long[]> usage = new EnumMap<>(Tier.class);
+        for (Tier tier : Tier.values()) {
+            usage.put(tier, new long[2]);
+        }
+        for (Entry entry : entries.values()) {
+            final long[] tierUsage = usage.get(entry.tier);
+            tierUsage[0]++;
+            tierUsage[1] += entry.size;
+        }
+        return usage;
+    }
+
+    private static final class Entry {
+        private final int mapIDstart;
+        private final int mapIDend;
+        private final Tier tier;
+        private final long size;
+        private final long modified;
+
+        private Entry(int mapIDstart, int mapIDend, Tier tier, long size, long modified) {
+            this.mapIDstart = mapIDstart;
+            this.mapIDend = mapIDend;
+            this.tier = tier;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
@@ -40,15 +40,26 @@ import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.map.ImageMap;
 import fr.zcraft.quartzlib.components.worker.Worker;
 import fr.zcraft.quartzlib.components.worker.WorkerAttributes;
+import fr.zcraft.quartzlib.components.worker.WorkerCallback;
 import fr.zcraft.quartzlib.components.worker.WorkerRunnable;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.imageio.ImageIO;
+import org.bukkit.map.MapPalette;
 
 
 @WorkerAttributes(name = "Image IO")
 public class ImageIOExecutor extends Worker {
+    /**
+     * The colors of the tiles submitted to {@link #saveTile(int, byte[])} and not written yet.
+     */
+    private static final Map<Integer, byte[]> pendingTiles = new ConcurrentHashMap<>();
+
     public static void loadImage(final File file, final Renderer mapRenderer) {
 
         submitQuery(new WorkerRunnable<Void>() {
@@ -57,6 +68,61 @@ public class ImageIOExecutor extends Worker {
                 BufferedImage image = ImageIO.read(file);
                 mapRenderer.setImage(image);
                 image.flush();//Safe to free
+
+                // Legacy PNG tiles are imported into the tile store, so they are never decoded again.
+                final byte[] colors = mapRenderer.getColors();
+                if (colors != null) {
+                    TileStore.write(mapRenderer.getMapID(), colors);
+                }
+                return null;
+            }
+        });
+    }
+
+    public static void loadTile(final int mapID, final Renderer mapRenderer) {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Exception {
+                final ByteBuffer tile = TileStore.getTile(mapID);
+                if (tile != null) {
+                    mapRenderer.setColors(tile);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Loads the tiles of several renderers from the tile store, in a single request.
+     *
+     * @param mapRenderers The renderers of the tiles.
+     */
+    public static void loadTiles(final List<Renderer> mapRenderers) {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Exception {
+                for (Renderer mapRenderer : mapRenderers) {
+                    final ByteBuffer tile = TileStore.getTile(mapRenderer.getMapID());
+                    if (tile != null) {
+                        mapRenderer.setColors(tile);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Loads the animation file of a tile, then starts playing it.
+     *
+     * @param mapID       The Minecraft map ID.
+     * @param mapRenderer The renderer of the tile.
+     */
+    public static void loadAnimation(final int mapID, final Renderer mapRenderer) {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Exception {
+                MapAnimator.readFile(mapID, mapRenderer);
                 return null;
             }
         });
@@ -72,23 +138,151 @@ public class ImageIOExecutor extends Worker {
         });
     }
 
+    /**
+     * Saves the full image of a map in the {@link FullImageStore}.
+     *
+     * @param mapIDstart The first map ID of the map.
+     * @param mapIDend   The last map ID of the map.
+     * @param image      The image.
+     */
+    public static void saveFullImage(final int mapIDstart, final int mapIDend, final BufferedImage image) {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Throwable {
+                FullImageStore.save(mapIDstart, mapIDend, image);
+                return null;
+            }
+        });
+    }
+
+    public static void deleteFullImage(final int mapIDstart, final int mapIDend) {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Throwable {
+                FullImageStore.delete(mapIDstart, mapIDend);
+                return null;
+            }
+        });
+    }
+
+    static void scanFullImages() {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Throwable {
+                FullImageStore.scan();
+                return null;
+            }
+        });
+    }
+
+    static void recompressFullImages() {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Throwable {
+                FullImageStore.recompressOldImages();
+                return null;
+            }
+        });
+    }
+
     public static void saveImage(int mapID, BufferedImage image) {
-        saveImage(ImageOnMap.getPlugin().getImageFile(mapID), image);
+        saveTile(mapID, MapPalette.imageToBytes(image));
     }
 
     public static void saveImage(int[] mapsIDs, PosterImage image) {
         for (int i = 0, c = mapsIDs.length; i < c; i++) {
-            BufferedImage img = image.getImageAt(i);
-            ImageIOExecutor.saveImage(ImageOnMap.getPlugin().getImageFile(mapsIDs[i]), img);
-            img.flush();//Safe to free
+            saveTile(mapsIDs[i], image.getColorsAt(i));
         }
     }
 
+    public static void saveTile(final int mapID, final byte[] colors) {
+        pendingTiles.put(mapID, colors);
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Throwable {
+                try {
+                    TileStore.write(mapID, colors);
+                } finally {
+                    pendingTiles.remove(mapID, colors);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the last colors submitted for a tile, if they are not written in the tile store
+     * yet.
+     *
+     * @param mapID The Minecraft map ID.
+     * @return the colors, or {@code null} if no write of this tile is pending.
+     */
+    public static byte[] getPendingTile(int mapID) {
+        return pendingTiles.get(mapID);
+    }
+
+    /**
+     * Saves the frames of an animated tile. The first frame is saved as the still tile too.
+     *
+     * @param mapID  The Minecraft map ID.
+     * @param frames The colors of each frame.
+     * @param delays The delay of each frame, in hundredths of a second.
+     */
+    public static void saveAnimation(final int mapID, final byte[][] frames, final int[] delays) {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Throwable {
+                TileStore.write(mapID, frames[0]);
+                MapAnimator.writeFile(mapID, frames, delays);
+                return null;
+            }
+        });
+    }
+
+    public static void deleteAnimation(final int mapID) {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Throwable {
+                MapAnimator.remove(mapID);
+                Files.deleteIfExists(MapAnimator.getFile(mapID).toPath());
+                return null;
+            }
+        });
+    }
+
     public static void deleteImage(ImageMap map) {
         int[] mapsIDs = map.getMapsIDs();
         for (int i = 0, c = mapsIDs.length; i < c; i++) {
-            deleteImage(ImageOnMap.getPlugin().getImageFile(mapsIDs[i]));
+            deleteTile(mapsIDs[i]);
         }
+        deleteFullImage(mapsIDs[0], mapsIDs[mapsIDs.length - 1]);
+    }
+
+    public static void deleteTile(final int mapID) {
+        submitQuery(new WorkerRunnable<Void>() {
+            @Override
+            public Void run() throws Throwable {
+                TileStore.delete(mapID);
+                Files.deleteIfExists(ImageOnMap.getPlugin().getImageFile(mapID).toPath());
+                MapAnimator.remove(mapID);
+                Files.deleteIfExists(MapAnimator.getFile(mapID).toPath());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Compacts the tile store in the background.
+     *
+     * @param callback Called with the number of bytes reclaimed.
+     */
+    public static void compactTiles(WorkerCallback<Long> callback) {
+        submitQuery(new WorkerRunnable<Long>() {
+            @Override
+            public Long run() throws Throwable {
+                return TileStore.compact();
+            }
+        }, callback);
     }
 
     public static void deleteImage(final File file) {
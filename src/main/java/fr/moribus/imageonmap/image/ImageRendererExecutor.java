@@ -40,29 +40,42 @@ import fr.moribus.imageonmap.Permissions;
 import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.map.ImageMap;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.PosterMap;
 import fr.zcraft.quartzlib.components.i18n.I;
 import fr.zcraft.quartzlib.components.worker.Worker;
 import fr.zcraft.quartzlib.components.worker.WorkerAttributes;
 import fr.zcraft.quartzlib.components.worker.WorkerCallback;
 import fr.zcraft.quartzlib.components.worker.WorkerRunnable;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
 import org.bukkit.Bukkit;
+import org.bukkit.map.MapPalette;
 
 @WorkerAttributes(name = "Image Renderer", queriesMainThread = true)
 public class ImageRendererExecutor extends Worker {
+    static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:25.0) Gecko/20100101 Firefox/25.0";
+
+    /**
+     * The maximal size of a downloaded image file, in bytes.
+     */
+    static final int MAX_DOWNLOAD_SIZE = 32 * 1024 * 1024;
+
     private static URLConnection connecting(URL url) throws IOException {
         final URLConnection connection = url.openConnection();
-        connection.addRequestProperty("User-Agent",
-                "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:25.0) Gecko/20100101 Firefox/25.0");
+        connection.addRequestProperty("User-Agent", USER_AGENT);
         connection.connect();
 
         if (connection instanceof HttpURLConnection) {
@@ -75,6 +88,33 @@ public class ImageRendererExecutor extends Worker {
         return connection;
     }
 
+    private static byte[] download(URL url) throws IOException {
+        return download(connecting(url));
+    }
+
+    /**
+     * Downloads a file, up to {@link #MAX_DOWNLOAD_SIZE} bytes.
+     *
+     * @throws IOException if the file is bigger, or cannot be downloaded.
+     */
+    static byte[] download(URLConnection connection) throws IOException {
+        if (connection.getContentLengthLong() > MAX_DOWNLOAD_SIZE) {
+            throw new IOException(I.t("The image is too big to be downloaded!"));
+        }
+
+        try (InputStream stream = connection.getInputStream()) {
+            final byte[] data = stream.readNBytes(MAX_DOWNLOAD_SIZE + 1);
+            if (data.length > MAX_DOWNLOAD_SIZE) {
+                throw new IOException(I.t("The image is too big to be downloaded!"));
+            }
+            return data;
+        }
+    }
+
+    private static int ceilDiv(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
     private static void checkSizeLimit(final UUID playerUUID, final BufferedImage image) throws IOException {
         if ((PluginConfiguration.LIMIT_SIZE_X.get() > 0 || PluginConfiguration.LIMIT_SIZE_Y.get() > 0)
                 && !Permissions.BYPASS_SIZE.grantedTo(Bukkit.getPlayer(playerUUID))) {
@@ -97,6 +137,7 @@ public class ImageRendererExecutor extends Worker {
             @Override
             public ImageMap run() throws Throwable {
 
+                byte[] data = null;
                 BufferedImage image = null;
                 //If the link is an imgur one
                 if (url.toString().toLowerCase().startsWith("https://imgur.com/")) {
@@ -117,11 +158,8 @@ public class ImageRendererExecutor extends Worker {
                         URL url2 = new URL(newLink);
 
                         //Try connecting
-                        URLConnection connection = connecting(url2);
-
-                        final InputStream stream = connection.getInputStream();
-
-                        image = ImageIO.read(stream);
+                        data = download(url2);
+                        image = ImageIO.read(new ByteArrayInputStream(data));
 
                         //valid image
                         if (image != null) {
@@ -132,18 +170,31 @@ public class ImageRendererExecutor extends Worker {
 
                 } else {
                     //Try connecting
-                    URLConnection connection = connecting(url);
-
-                    final InputStream stream = connection.getInputStream();
-
-                    image = ImageIO.read(stream);
+                    data = download(url);
+                    image = ImageIO.read(new ByteArrayInputStream(data));
                 }
                 if (image == null) {
                     throw new IOException(I.t("The given URL is not a valid image"));
                 }
                 // Limits are in place and the player does NOT have rights to avoid them.
                 checkSizeLimit(playerUUID, image);
-                if (scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1) {
+                final boolean single = scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1;
+
+                if (AnimatedImage.isGif(data)) {
+                    final int tileCount = scaling != ImageUtils.ScalingType.NONE
+                            ? (single ? 1 : width * height)
+                            : ceilDiv(image.getWidth(), ImageMap.WIDTH) * ceilDiv(image.getHeight(), ImageMap.HEIGHT);
+                    final int mapWidth = ImageMap.WIDTH * (single ? 1 : width);
+                    final int mapHeight = ImageMap.HEIGHT * (single ? 1 : height);
+                    final AnimatedImage animation = AnimatedImage.read(data, MapAnimator.getFrameBudget(tileCount),
+                            MapAnimator.getRemainingMemory(), frame -> scaling.resize(frame, mapWidth, mapHeight));
+                    if (animation != null && animation.getFrames().size() > 1) {
+                        image.flush();//Safe to free
+                        return renderAnimation(animation, scaling, playerUUID);
+                    }
+                }
+
+                if (single) {
                     ImageMap ret = renderSingle(scaling.resize(image, ImageMap.WIDTH, ImageMap.HEIGHT), playerUUID);
                     image.flush();//Safe to free
                     return ret;
@@ -156,18 +207,18 @@ public class ImageRendererExecutor extends Worker {
         }, callback);
     }
 
+    /**
+     * Updates a map with a new image. The callback receives the number of tiles that were
+     * skipped because their colors did not change.
+     */
     public static void update(final URL url, final ImageUtils.ScalingType scaling, final UUID playerUUID,
                               final ImageMap map, final int width, final int height,
-                              WorkerCallback<ImageMap> callback) {
-        submitQuery(new WorkerRunnable<ImageMap>() {
+                              WorkerCallback<Integer> callback) {
+        submitQuery(new WorkerRunnable<Integer>() {
             @Override
-            public ImageMap run() throws Throwable {
-
-                final URLConnection connection = connecting(url);
+            public Integer run() throws Throwable {
 
-                final InputStream stream = connection.getInputStream();
-                final BufferedImage image = ImageIO.read(stream);
-                stream.close();
+                final BufferedImage image = ImageIO.read(new ByteArrayInputStream(download(url)));
 
                 if (image == null) {
                     throw new IOException(I.t("The given URL is not a valid image"));
@@ -176,36 +227,114 @@ public class ImageRendererExecutor extends Worker {
                 // Limits are in place and the player does NOT have rights to avoid them.
                 checkSizeLimit(playerUUID, image);
 
-                updateMap(scaling.resize(image, width * 128, height * 128), playerUUID, map.getMapsIDs());
-                return map;
+                return updateMap(scaling.resize(image, width * 128, height * 128), playerUUID, map.getMapsIDs());
 
             }
         }, callback);
 
     }
 
-    private static void updateMap(final BufferedImage image, final UUID playerUUID, int[] mapsIDs) throws Throwable {
+    /**
+     * Updates a map with an image already downloaded, like the {@link RefreshScheduler} does.
+     * The callback receives the number of tiles that were skipped because their colors did
+     * not change.
+     */
+    public static void update(final BufferedImage image, final ImageUtils.ScalingType scaling, final ImageMap map,
+                              WorkerCallback<Integer> callback) {
+        final int width = map instanceof PosterMap ? Math.max(1, ((PosterMap) map).getColumnCount()) : 1;
+        final int height = map instanceof PosterMap ? Math.max(1, ((PosterMap) map).getRowCount()) : 1;
+
+        submitQuery(new WorkerRunnable<Integer>() {
+            @Override
+            public Integer run() throws Throwable {
+                return updateMap(scaling.resize(image, width * ImageMap.WIDTH, height * ImageMap.HEIGHT),
+                        map.getUserUUID(), map.getMapsIDs());
+            }
+        }, callback);
+    }
+
+    /**
+     * Updates the tiles of a map with a new image. Only the tiles whose colors changed are
+     * saved and sent again to the players.
+     *
+     * @return the number of tiles skipped.
+     */
+    private static int updateMap(final BufferedImage image, final UUID playerUUID, int[] mapsIDs) throws Throwable {
 
         final PosterImage poster = new PosterImage(image);
         poster.splitImages();
 
-        ImageIOExecutor.saveImage(mapsIDs, poster);
+        final List<Integer> changedMapsIDs = new ArrayList<>();
+        final List<byte[]> changedColors = new ArrayList<>();
+        final byte[] currentColors = new byte[MapColorArena.TILE_SIZE];
+
+        for (int i = 0; i < mapsIDs.length; i++) {
+            final byte[] colors = poster.getColorsAt(i);
+            if (MapAnimator.hasAnimation(mapsIDs[i])) {
+                // The new image is a still one, so the animation is dropped.
+                ImageIOExecutor.deleteAnimation(mapsIDs[i]);
+            } else if (hasColors(mapsIDs[i], colors, currentColors)) {
+                continue;
+            }
+
+            ImageIOExecutor.saveTile(mapsIDs[i], colors);
+            changedMapsIDs.add(mapsIDs[i]);
+            changedColors.add(colors);
+        }
 
         if (PluginConfiguration.SAVE_FULL_IMAGE.get()) {
-            ImageIOExecutor.saveImage(ImageMap.getFullImageFile(mapsIDs[0], mapsIDs[mapsIDs.length - 1]), image);
+            ImageIOExecutor.saveFullImage(mapsIDs[0], mapsIDs[mapsIDs.length - 1], image);
+        }
+
+        final int skippedCount = mapsIDs.length - changedMapsIDs.size();
+        if (changedMapsIDs.isEmpty()) {
+            return skippedCount;
         }
 
         submitToMainThread(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                Renderer.installRenderer(poster, mapsIDs);
+                for (int i = 0; i < changedMapsIDs.size(); i++) {
+                    Renderer.updateRenderer(changedColors.get(i), changedMapsIDs.get(i));
+                }
                 return null;
             }
         });
+        return skippedCount;
+    }
+
+    /**
+     * Checks if a map already has the given colors: from the last colors submitted for it if
+     * they are still being saved, from the hash of its stored tile, or else from its loaded
+     * renderer.
+     *
+     * @param mapID  The ID of the map.
+     * @param colors The new colors of the map.
+     * @param buffer A buffer of {@link MapColorArena#TILE_SIZE} bytes to read the current colors into.
+     * @return true if the colors are the same.
+     */
+    private static boolean hasColors(int mapID, byte[] colors, byte[] buffer) {
+        final byte[] pendingColors = ImageIOExecutor.getPendingTile(mapID);
+        if (pendingColors != null) {
+            return Arrays.equals(colors, pendingColors);
+        }
+        if (TileStore.contains(mapID)) {
+            return TileStore.hasColors(mapID, colors);
+        }
+        return MapColorArena.read(mapID, buffer) && Arrays.equals(colors, buffer);
     }
 
     private static ImageMap renderSingle(final BufferedImage image, final UUID playerUUID) throws Throwable {
-        MapManager.checkMapLimit(1, playerUUID);
+        MapManager.reserveMaps(1, playerUUID);
+        try {
+            return renderReservedSingle(image, playerUUID);
+        } finally {
+            MapManager.releaseMaps(1, playerUUID);
+        }
+    }
+
+    private static ImageMap renderReservedSingle(final BufferedImage image, final UUID playerUUID)
+            throws Throwable {
         final Future<Integer> futureMapID = submitToMainThread(new Callable<Integer>() {
             @Override
             public Integer call() throws Exception {
@@ -214,11 +343,12 @@ public class ImageRendererExecutor extends Worker {
         });
 
         final int mapID = futureMapID.get();
-        ImageIOExecutor.saveImage(mapID, image);
+        final byte[] colors = MapPalette.imageToBytes(image);
+        ImageIOExecutor.saveTile(mapID, colors);
         submitToMainThread(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                Renderer.installRenderer(image, mapID);
+                Renderer.installRenderer(colors, mapID);
                 return null;
             }
         });
@@ -228,7 +358,17 @@ public class ImageRendererExecutor extends Worker {
     private static ImageMap renderPoster(final BufferedImage image, final UUID playerUUID) throws Throwable {
         final PosterImage poster = new PosterImage(image);
         final int mapCount = poster.getImagesCount();
-        MapManager.checkMapLimit(mapCount, playerUUID);
+        MapManager.reserveMaps(mapCount, playerUUID);
+        try {
+            return renderReservedPoster(image, poster, playerUUID);
+        } finally {
+            MapManager.releaseMaps(mapCount, playerUUID);
+        }
+    }
+
+    private static ImageMap renderReservedPoster(final BufferedImage image, final PosterImage poster,
+                                                 final UUID playerUUID) throws Throwable {
+        final int mapCount = poster.getImagesCount();
         final Future<int[]> futureMapsIds = submitToMainThread(new Callable<int[]>() {
             @Override
             public int[] call() throws Exception {
@@ -237,12 +377,10 @@ public class ImageRendererExecutor extends Worker {
         });
         poster.splitImages();
         final int[] mapsIDs = futureMapsIds.get();
-        ImageIOExecutor.saveImage(mapsIDs, poster);
-
 
         ImageIOExecutor.saveImage(mapsIDs, poster);
         if (PluginConfiguration.SAVE_FULL_IMAGE.get()) {
-            ImageIOExecutor.saveImage(ImageMap.getFullImageFile(mapsIDs[0], mapsIDs[mapsIDs.length - 1]), image);
+            ImageIOExecutor.saveFullImage(mapsIDs[0], mapsIDs[mapsIDs.length - 1], image);
         }
 
         submitToMainThread(new Callable<Void>() {
@@ -257,6 +395,66 @@ public class ImageRendererExecutor extends Worker {
         return MapManager.createMap(poster, playerUUID, mapsIDs);
     }
 
+    /**
+     * Renders an animated image. Every frame was converted to map colors once, when decoded;
+     * the {@link MapAnimator} then only swaps the precomputed colors.
+     */
+    private static ImageMap renderAnimation(final AnimatedImage animation, final ImageUtils.ScalingType scaling,
+                                           final UUID playerUUID) throws Throwable {
+        final List<byte[][]> frames = animation.getFrames();
+        final PosterImage poster = animation.getFirstFrame();
+        final int mapCount = poster.getImagesCount();
+        MapManager.reserveMaps(mapCount, playerUUID);
+        try {
+            final Future<int[]> futureMapsIds = submitToMainThread(new Callable<int[]>() {
+                @Override
+                public int[] call() throws Exception {
+                    return MapManager.getNewMapsIds(mapCount);
+                }
+            });
+
+            // The colors of each tile, frame by frame.
+            final byte[][][] tiles = new byte[mapCount][frames.size()][];
+            for (int frame = 0; frame < frames.size(); frame++) {
+                for (int tile = 0; tile < mapCount; tile++) {
+                    tiles[tile][frame] = frames.get(frame)[tile];
+                }
+            }
+
+            final int[] mapsIDs = futureMapsIds.get();
+            final int[] delays = animation.getDelays();
+            final ByteBuffer[] buffers = new ByteBuffer[mapCount];
+            for (int i = 0; i < mapCount; i++) {
+                ImageIOExecutor.saveAnimation(mapsIDs[i], tiles[i], delays);
+                buffers[i] = MapAnimator.toBuffer(tiles[i]);
+            }
+            if (PluginConfiguration.SAVE_FULL_IMAGE.get()) {
+                ImageIOExecutor.saveFullImage(mapsIDs[0], mapsIDs[mapsIDs.length - 1], poster.getImage());
+            }
+            animation.flush();//Safe to free
+
+            submitToMainThread(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < mapCount; i++) {
+                        final Renderer renderer = Renderer.installRenderer(tiles[i][0], mapsIDs[i]);
+                        if (renderer != null) {
+                            MapAnimator.start(renderer, buffers[i], delays);
+                        }
+                    }
+                    return null;
+                }
+            });
+
+            if (mapCount == 1 && scaling != ImageUtils.ScalingType.NONE) {
+                return MapManager.createMap(playerUUID, mapsIDs[0]);
+            }
+            return MapManager.createMap(poster, playerUUID, mapsIDs);
+        } finally {
+            MapManager.releaseMaps(mapCount, playerUUID);
+        }
+    }
+
     private enum Extension {
         png, jpg, jpeg, gif
     }
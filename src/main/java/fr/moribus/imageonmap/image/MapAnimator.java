@@ -0,0 +1,391 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Plays the animated maps.
+ *
+ * <p>The frames of each animated tile are converted to map colors once, when the image is
+ * rendered, and kept off-heap. Every tick, the tiles whose frame is over get the colors of
+ * their next frame. The total size of the frames is bounded by {@code animation-memory-budget};
+ * tiles over the budget stay on their first frame.</p>
+ *
+ * <p>How often a player's canvas is redrawn is capped by {@code animation-max-fps}, which can
+ * be lowered for some worlds with {@code animation-world-max-fps}.</p>
+ */
+public final class MapAnimator {
+    /**
+     * The extension of the animation files, stored next to the tiles.
+     */
+    public static final String FILE_EXTENSION = "anim";
+
+    private static final int MAGIC = 0x494F4D41; // "IOMA"
+    private static final int FORMAT_VERSION = 1;
+    private static final int TICKS_PER_SECOND = 20;
+
+    private static final Map<Integer, Animation> animations = new HashMap<>();
+    private static final Set<Integer> animatedMaps = new HashSet<>();
+    private static final Map<String, Integer> worldFrameIntervals = new HashMap<>();
+    private static int defaultFrameInterval = 1;
+    private static long usedMemory = 0;
+    private static BukkitTask animationTask = null;
+
+    /**
+     * The number of ticks since the animator was started. Only accessed on the main thread.
+     */
+    private static int currentTick = 0;
+
+    private MapAnimator() {
+    }
+
+    public static synchronized void init() {
+        defaultFrameInterval = toFrameInterval(PluginConfiguration.ANIMATION_MAX_FPS.get());
+
+        final ConfigurationSection worldLimits =
+                ImageOnMap.getPlugin().getConfig().getConfigurationSection("animation-world-max-fps");
+        if (worldLimits != null) {
+            for (String world : worldLimits.getKeys(false)) {
+                worldFrameIntervals.put(world, toFrameInterval(worldLimits.getInt(world)));
+            }
+        }
+
+        final String[] files = ImageOnMap.getPlugin().getImagesDirectory()
+                .list((directory, name) -> name.startsWith("map") && name.endsWith("." + FILE_EXTENSION));
+        if (files != null) {
+            for (String file : files) {
+                try {
+                    animatedMaps.add(Integer.parseInt(file.substring(3, file.length() - FILE_EXTENSION.length() - 1)));
+                } catch (NumberFormatException ignored) {
+                    // Not an animation file.
+                }
+            }
+        }
+
+        animationTask = Bukkit.getScheduler().runTaskTimer(ImageOnMap.getPlugin(), MapAnimator::tick, 1L, 1L);
+    }
+
+    public static synchronized void exit() {
+        if (animationTask != null) {
+            animationTask.cancel();
+            animationTask = null;
+        }
+        animations.clear();
+        animatedMaps.clear();
+        worldFrameIntervals.clear();
+        usedMemory = 0;
+    }
+
+    private static int toFrameInterval(int maxFps) {
+        if (maxFps <= 0) {
+            return 1;
+        }
+        return Math.max(1, (TICKS_PER_SECOND + maxFps - 1) / maxFps);
+    }
+
+    /**
+     * Checks if a map has an animation file, to load instead of its still tile.
+     *
+     * @param mapID The Minecraft map ID.
+     * @return true if the map is animated.
+     */
+    public static synchronized boolean hasAnimation(int mapID) {
+        return animatedMaps.contains(mapID);
+    }
+
+    public static synchronized int getAnimationCount() {
+        return animations.size();
+    }
+
+    /**
+     * @return the memory used by the frames of the playing animations, in bytes.
+     */
+    public static synchronized long getUsedMemory() {
+        return usedMemory;
+    }
+
+    /**
+     * Computes how many frames can be kept for a new animation, with the remaining memory budget.
+     *
+     * @param tileCount The number of tiles of the animation.
+     * @return the maximal number of frames. Less than two means the image cannot be animated.
+     */
+    public static synchronized int getFrameBudget(int tileCount) {
+        return (int) Math.min(Integer.MAX_VALUE, getRemainingMemory() / ((long) tileCount * MapColorArena.TILE_SIZE));
+    }
+
+    /**
+     * @return the memory left in the budget of the animations, in bytes.
+     */
+    public static synchronized long getRemainingMemory() {
+        return Math.max(0, getMemoryBudget() - usedMemory);
+    }
+
+    private static long getMemoryBudget() {
+        return Math.max(0, PluginConfiguration.ANIMATION_MEMORY_BUDGET.get()) * 1024L * 1024L;
+    }
+
+    /**
+     * Gets the minimal number of ticks between two redraws of an animated map, for the players
+     * in the given world.
+     *
+     * @param world The world of the player.
+     * @return the number of ticks.
+     */
+    static int getFrameInterval(World world) {
+        final Integer interval = worldFrameIntervals.get(world.getName());
+        return interval != null ? interval : defaultFrameInterval;
+    }
+
+    static int getCurrentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Starts playing an animated tile. The renderer already shows the first frame.
+     *
+     * @param renderer The renderer of the tile.
+     * @param frames   The colors of the frames, {@link MapColorArena#TILE_SIZE} bytes per frame.
+     * @param delays   The delay of each frame, in hundredths of a second.
+     * @return false if the animation is over the memory budget and was not started.
+     */
+    public static synchronized boolean start(Renderer renderer, ByteBuffer frames, int[] delays) {
+        stop(renderer.getMapID());
+
+        final long size = frames.capacity();
+        if (usedMemory + size > getMemoryBudget()) {
+            PluginLogger.warning("Not animating map {0}: the animation memory budget is exhausted",
+                    renderer.getMapID());
+            return false;
+        }
+
+        final int[] intervals = new int[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            // Hundredths of a second to ticks.
+            intervals[i] = Math.max(1, Math.round(delays[i] / 5f));
+        }
+
+        animations.put(renderer.getMapID(), new Animation(renderer, frames, intervals));
+        animatedMaps.add(renderer.getMapID());
+        renderer.setAnimated(true);
+        usedMemory += size;
+        return true;
+    }
+
+    /**
+     * Stops playing an animated tile, and frees its frames. The tile keeps its current colors.
+     *
+     * @param mapID The Minecraft map ID.
+     */
+    public static synchronized void stop(int mapID) {
+        final Animation animation = animations.remove(mapID);
+        if (animation != null) {
+            animation.renderer.setAnimated(false);
+            usedMemory -= animation.frames.capacity();
+        }
+    }
+
+    /**
+     * Stops playing an animated tile, and forgets it has an animation file.
+     *
+     * @param mapID The Minecraft map ID.
+     */
+    static synchronized void remove(int mapID) {
+        stop(mapID);
+        animatedMaps.remove(mapID);
+    }
+
+    private static synchronized void tick() {
+        currentTick++;
+        for (Animation animation : animations.values()) {
+            if (--animation.remainingTicks > 0) {
+                continue;
+            }
+
+            animation.frame = (animation.frame + 1) % animation.intervals.length;
+            animation.remainingTicks = animation.intervals[animation.frame];
+
+            final ByteBuffer frame = animation.frames.duplicate();
+            frame.position(animation.frame * MapColorArena.TILE_SIZE);
+            frame.limit(frame.position() + MapColorArena.TILE_SIZE);
+            animation.renderer.setColors(frame);
+        }
+    }
+
+    /**
+     * Copies the colors of the frames into a direct buffer, as expected by
+     * {@link #start(Renderer, ByteBuffer, int[])}.
+     *
+     * @param frames The colors of each frame.
+     * @return the buffer.
+     */
+    static ByteBuffer toBuffer(byte[][] frames) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(frames.length * MapColorArena.TILE_SIZE);
+        for (byte[] frame : frames) {
+            buffer.put(frame);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static File getFile(int mapID) {
+        return new File(ImageOnMap.getPlugin().getImagesDirectory(), "map" + mapID + "." + FILE_EXTENSION);
+    }
+
+    /**
+     * Writes the animation file of a tile. It is written to a temporary file first, so a crash
+     * never leaves a truncated animation.
+     *
+     * @param mapID  The Minecraft map ID.
+     * @param frames The colors of each frame.
+     * @param delays The delay of each frame, in hundredths of a second.
+     * @throws IOException if the file cannot be written.
+     */
+    static void writeFile(int mapID, byte[][] frames, int[] delays) throws IOException {
+        final File file = getFile(mapID);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+
+        try (OutputStream stream = Files.newOutputStream(tmpFile.toPath());
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(frames.length);
+            for (int delay : delays) {
+                output.writeInt(delay);
+            }
+            for (byte[] frame : frames) {
+                output.write(frame);
+            }
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (MapAnimator.class) {
+            animatedMaps.add(mapID);
+        }
+    }
+
+    /**
+     * Reads the animation file of a tile, and starts playing it.
+     *
+     * @param mapID    The Minecraft map ID.
+     * @param renderer The renderer of the tile.
+     * @throws IOException if the file cannot be read.
+     */
+    static void readFile(int mapID, Renderer renderer) throws IOException {
+        final ByteBuffer frames;
+        final int[] delays;
+
+        try (InputStream stream = Files.newInputStream(getFile(mapID).toPath());
+             DataInputStream input = new DataInputStream(new BufferedInputStream(stream))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Invalid animation file for map " + mapID);
+            }
+            final int version = input.readInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unsupported animation file version " + version + " for map " + mapID);
+            }
+
+            final int frameCount = input.readInt();
+            if (frameCount < 1) {
+                throw new IOException("Invalid frame count " + frameCount + " for map " + mapID);
+            }
+
+            delays = new int[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                delays[i] = input.readInt();
+            }
+
+            final byte[] frame = new byte[MapColorArena.TILE_SIZE];
+            input.readFully(frame);
+            renderer.setColors(frame);
+
+            if (frameCount * (long) MapColorArena.TILE_SIZE > getMemoryBudget()) {
+                PluginLogger.warning("Not animating map {0}: the animation is larger than the memory budget", mapID);
+                return;
+            }
+
+            frames = ByteBuffer.allocateDirect(frameCount * MapColorArena.TILE_SIZE);
+            frames.put(frame);
+            for (int i = 1; i < frameCount; i++) {
+                input.readFully(frame);
+                frames.put(frame);
+            }
+            frames.flip();
+        }
+
+        start(renderer, frames, delays);
+    }
+
+    private static final class Animation {
+        private final Renderer renderer;
+        private final ByteBuffer frames;
+        private final int[] intervals;
+        private int frame = 0;
+        private int remainingTicks;
+
+        private Animation(Renderer renderer, ByteBuffer frames, int[] intervals) {
+            this.renderer = renderer;
+            this.frames = frames;
+            this.intervals = intervals;
+            this.remainingTicks = intervals[0];
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.map.ImageMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Off-heap storage for the map colors of the loaded tiles.
+ *
+ * <p>Each tile takes a fixed slot of {@link #TILE_SIZE} bytes in a direct buffer. Buffers
+ * are allocated by chunks of {@link #SLOTS_PER_CHUNK} slots, and released slots are reused,
+ * so the heap usage stays flat whatever the number of loaded maps.</p>
+ */
+public final class MapColorArena {
+    /**
+     * The size of a tile, in bytes (one byte per pixel).
+     */
+    public static final int TILE_SIZE = ImageMap.WIDTH * ImageMap.HEIGHT;
+
+    /**
+     * The number of slots in a chunk (4 MiB).
+     */
+    private static final int SLOTS_PER_CHUNK = 256;
+
+    private static final List<ByteBuffer> chunks = new ArrayList<>();
+    private static final MapSlotTable slots = new MapSlotTable();
+    private static int[] freeSlots = new int[SLOTS_PER_CHUNK];
+    private static int freeSlotsCount = 0;
+    private static int nextSlot = 0;
+
+    private MapColorArena() {
+    }
+
+    /**
+     * Stores (or replaces) the colors of a tile.
+     *
+     * @param mapID  The Minecraft map ID.
+     * @param colors The tile colors, {@link #TILE_SIZE} bytes.
+     * @return the {@link DirtyRect} of the pixels that changed.
+     */
+    public static synchronized int store(int mapID, byte[] colors) {
+        if (colors.length != TILE_SIZE) {
+            throw new IllegalArgumentException("Invalid tile size: " + colors.length);
+        }
+        return write(mapID, ByteBuffer.wrap(colors));
+    }
+
+    /**
+     * Stores (or replaces) the colors of a tile.
+     *
+     * @param mapID  The Minecraft map ID.
+     * @param colors The tile colors, {@link #TILE_SIZE} remaining bytes. The buffer position is
+     *               not modified.
+     * @return the {@link DirtyRect} of the pixels that changed.
+     */
+    public static synchronized int store(int mapID, ByteBuffer colors) {
+        if (colors.remaining() != TILE_SIZE) {
+            throw new IllegalArgumentException("Invalid tile size: " + colors.remaining());
+        }
+        return write(mapID, colors.duplicate());
+    }
+
+    /**
+     * Copies the colors of a tile.
+     *
+     * @param mapID       The Minecraft map ID.
+     * @param destination The array to copy the colors to, at least {@link #TILE_SIZE} bytes.
+     * @return {@code true} if the tile is stored and was copied.
+     */
+    public static synchronized boolean read(int mapID, byte[] destination) {
+        final int slot = slots.get(mapID);
+        if (slot == MapSlotTable.NO_SLOT) {
+            return false;
+        }
+
+        final ByteBuffer buffer = chunks.get(slot / SLOTS_PER_CHUNK).duplicate();
+        buffer.position((slot % SLOTS_PER_CHUNK) * TILE_SIZE);
+        buffer.get(destination, 0, TILE_SIZE);
+        return true;
+    }
+
+    public static synchronized boolean contains(int mapID) {
+        return slots.contains(mapID);
+    }
+
+    /**
+     * Frees the slot of a tile, if any.
+     *
+     * @param mapID The Minecraft map ID.
+     */
+    public static synchronized void release(int mapID) {
+        final int slot = slots.remove(mapID);
+        if (slot != MapSlotTable.NO_SLOT) {
+            if (freeSlotsCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+            }
+            freeSlots[freeSlotsCount++] = slot;
+        }
+    }
+
+    /**
+     * Releases every slot. The chunks are kept for later use.
+     */
+    public static synchronized void clear() {
+        slots.clear();
+        freeSlotsCount = 0;
+        nextSlot = 0;
+    }
+
+    /**
+     * @return the number of stored tiles.
+     */
+    public static synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * @return the off-heap memory allocated by the arena, in bytes.
+     */
+    public static synchronized long getAllocatedBytes() {
+        return (long) chunks.size() * SLOTS_PER_CHUNK * TILE_SIZE;
+    }
+
+    /**
+     * Writes the colors of a tile into its slot, eight pixels at a time, and only where they
+     * changed.
+     *
+     * @return the {@link DirtyRect} of the pixels that changed.
+     */
+    private static int write(int mapID, ByteBuffer colors) {
+        final boolean isNew = !slots.contains(mapID);
+        final ByteBuffer slot = slotBuffer(mapID);
+        if (isNew) {
+            slot.put(colors);
+            return DirtyRect.FULL;
+        }
+
+        final int slotStart = slot.position();
+        final int colorsStart = colors.position();
+        int rect = DirtyRect.EMPTY;
+
+        for (int y = 0; y < ImageMap.HEIGHT; y++) {
+            for (int x = 0; x < ImageMap.WIDTH; x += Long.BYTES) {
+                final int offset = y * ImageMap.WIDTH + x;
+                final long oldPixels = slot.getLong(slotStart + offset);
+                final long newPixels = colors.getLong(colorsStart + offset);
+                if (oldPixels == newPixels) {
+                    continue;
+                }
+
+                // Buffers are big-endian, so the leading bits are the leftmost pixels.
+                final long changed = oldPixels ^ newPixels;
+                rect = DirtyRect.union(rect, DirtyRect.of(x + Long.numberOfLeadingZeros(changed) / Byte.SIZE, y,
+                        x + Long.BYTES - 1 - Long.numberOfTrailingZeros(changed) / Byte.SIZE, y));
+                slot.putLong(slotStart + offset, newPixels);
+            }
+        }
+        return rect;
+    }
+
+    private static ByteBuffer slotBuffer(int mapID) {
+        int slot = slots.get(mapID);
+        if (slot == MapSlotTable.NO_SLOT) {
+            slot = allocateSlot();
+            slots.put(mapID, slot);
+        }
+
+        final ByteBuffer buffer = chunks.get(slot / SLOTS_PER_CHUNK).duplicate();
+        buffer.position((slot % SLOTS_PER_CHUNK) * TILE_SIZE);
+        return buffer;
+    }
+
+    private static int allocateSlot() {
+        if (freeSlotsCount > 0) {
+            return freeSlots[--freeSlotsCount];
+        }
+
+        if (nextSlot == chunks.size() * SLOTS_PER_CHUNK) {
+            chunks.add(ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * TILE_SIZE));
+        }
+        return nextSlot++;
+    }
+}
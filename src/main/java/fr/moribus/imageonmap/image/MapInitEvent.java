@@ -40,6 +40,8 @@ import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.map.MapManager;
 import fr.zcraft.quartzlib.core.QuartzLib;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.World;
@@ -60,9 +62,12 @@ public class MapInitEvent implements Listener {
     public static void init() {
         QuartzLib.registerEvents(new MapInitEvent());
 
-        for (World world : Bukkit.getWorlds()) {
-            for (ItemFrame frame : world.getEntitiesByClass(ItemFrame.class)) {
-                initMap(frame.getItem());
+        // Otherwise, the maps in item frames are loaded when a player comes close.
+        if (!MapViewerTracker.isEnabled()) {
+            for (World world : Bukkit.getWorlds()) {
+                for (ItemFrame frame : world.getEntitiesByClass(ItemFrame.class)) {
+                    initMap(frame.getItem());
+                }
             }
         }
 
@@ -81,22 +86,63 @@ public class MapInitEvent implements Listener {
         initMap(Bukkit.getServer().getMap(id));
     }
 
+    /**
+     * Loads several maps at once, like the maps of a poster. The tiles of the tile store are all
+     * read by a single request.
+     *
+     * @param ids The Minecraft map IDs.
+     */
+    public static void initMaps(int[] ids) {
+        final List<Renderer> renderers = new ArrayList<>();
+        for (int id : ids) {
+            final MapView map = Bukkit.getServer().getMap(id);
+            if (map == null || Renderer.isHandled(map) || MapAnimator.hasAnimation(id) || !TileStore.contains(id)) {
+                initMap(map);
+                continue;
+            }
+
+            MapViewerTracker.seen(id);
+            renderers.add(Renderer.installRenderer(map));
+        }
+
+        if (!renderers.isEmpty()) {
+            ImageIOExecutor.loadTiles(renderers);
+        }
+    }
+
     public static void initMap(MapView map) {
         if (map == null) {
             return;
         }
         if (Renderer.isHandled(map)) {
+            MapViewerTracker.seen(map.getId());
+            return;
+        }
+
+        if (MapAnimator.hasAnimation(map.getId())) {
+            MapViewerTracker.seen(map.getId());
+            ImageIOExecutor.loadAnimation(map.getId(), Renderer.installRenderer(map));
+            return;
+        }
+
+        if (TileStore.contains(map.getId())) {
+            MapViewerTracker.seen(map.getId());
+            ImageIOExecutor.loadTile(map.getId(), Renderer.installRenderer(map));
             return;
         }
 
         File imageFile = ImageOnMap.getPlugin().getImageFile(map.getId());
         if (imageFile.isFile()) {
+            MapViewerTracker.seen(map.getId());
             ImageIOExecutor.loadImage(imageFile, Renderer.installRenderer(map));
         }
     }
 
     @EventHandler
     public void onChunkLoad(ChunkLoadEvent event) {
+        if (MapViewerTracker.isEnabled()) {
+            return;
+        }
         for (Entity entity : event.getChunk().getEntities()) {
             if (entity instanceof ItemFrame) {
                 initMap(((ItemFrame) entity).getItem());
@@ -0,0 +1,156 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.util.Arrays;
+
+/**
+ * The slots of the tiles in the {@link MapColorArena}, by Minecraft map ID, stored in an
+ * open-addressing table of primitive ints, so looking up a tile costs no allocation.
+ *
+ * <p>Not thread-safe: {@link MapColorArena} synchronizes the accesses.</p>
+ */
+final class MapSlotTable {
+    /**
+     * Returned by {@link #get(int)} and {@link #remove(int)} for the maps without a slot.
+     */
+    static final int NO_SLOT = -1;
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int MIN_CAPACITY = 64;
+
+    private int[] keys = newKeys(MIN_CAPACITY);
+    private int[] values = new int[MIN_CAPACITY];
+    private int size = 0;
+
+    private static int[] newKeys(int capacity) {
+        final int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    private static int hash(int mapID) {
+        // Spreads the consecutive IDs of the posters across the table.
+        final int hash = mapID * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private int indexOf(int mapID) {
+        final int mask = keys.length - 1;
+        for (int i = hash(mapID) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == mapID) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int get(int mapID) {
+        final int i = indexOf(mapID);
+        return i < 0 ? NO_SLOT : values[i];
+    }
+
+    public boolean contains(int mapID) {
+        return indexOf(mapID) >= 0;
+    }
+
+    public void put(int mapID, int slot) {
+        if (mapID == EMPTY) {
+            throw new IllegalArgumentException("Invalid map ID: " + mapID);
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+
+        final int mask = keys.length - 1;
+        int i = hash(mapID) & mask;
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == mapID) {
+                values[i] = slot;
+                return;
+            }
+        }
+        keys[i] = mapID;
+        values[i] = slot;
+        size++;
+    }
+
+    public int remove(int mapID) {
+        int gap = indexOf(mapID);
+        if (gap < 0) {
+            return NO_SLOT;
+        }
+        final int slot = values[gap];
+
+        // Moves back the following entries of the probe sequence, so no tombstone is needed.
+        final int mask = keys.length - 1;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            final int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return slot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        keys = newKeys(MIN_CAPACITY);
+        values = new int[MIN_CAPACITY];
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        final int[] oldKeys = keys;
+        final int[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
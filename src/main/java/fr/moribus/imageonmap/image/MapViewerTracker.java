@@ -0,0 +1,205 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.map.MapManager;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.map.MapView;
+import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.util.Vector;
+
+/**
+ * Loads the maps in item frames only when a player can see them, and releases them once no
+ * player is around anymore.
+ *
+ * <p>Every second, the item frames within {@code render-distance} blocks of each player are
+ * scanned. The maps in front of the player (or very close to them) and facing them are loaded;
+ * the maps that stayed out of range of every player for {@code render-release-delay} seconds
+ * are unloaded, and will be loaded again from the tile store when seen again.</p>
+ *
+ * <p>With a {@code render-distance} of 0, every map is loaded with its chunk, like before.</p>
+ */
+public final class MapViewerTracker {
+    private static final long SCAN_PERIOD = 20L;
+
+    /**
+     * Maps closer than this (in blocks) are loaded whatever the direction the player looks at,
+     * so they are ready when the player turns around.
+     */
+    private static final double NEAR_DISTANCE = 16;
+
+    /**
+     * The number of the last scan in which each loaded map was in range of a player.
+     */
+    private static final Map<Integer, Integer> lastSeen = new HashMap<>();
+    private static int scanCount = 0;
+    private static BukkitTask scanTask = null;
+
+    private MapViewerTracker() {
+    }
+
+    public static void init() {
+        if (isEnabled()) {
+            scanTask = Bukkit.getScheduler().runTaskTimer(ImageOnMap.getPlugin(), MapViewerTracker::scan,
+                    SCAN_PERIOD, SCAN_PERIOD);
+        }
+    }
+
+    public static void exit() {
+        if (scanTask != null) {
+            scanTask.cancel();
+            scanTask = null;
+        }
+        lastSeen.clear();
+    }
+
+    /**
+     * @return true if the maps in item frames are loaded only when seen.
+     */
+    public static boolean isEnabled() {
+        return PluginConfiguration.RENDER_DISTANCE.get() > 0;
+    }
+
+    public static int getTrackedCount() {
+        return lastSeen.size();
+    }
+
+    /**
+     * Marks a loaded map as seen, so it is not released before the next scans.
+     *
+     * @param mapID The Minecraft map ID.
+     */
+    static void seen(int mapID) {
+        if (scanTask != null) {
+            lastSeen.put(mapID, scanCount);
+        }
+    }
+
+    private static void scan() {
+        scanCount++;
+        final double distance = PluginConfiguration.RENDER_DISTANCE.get();
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            seen(player.getInventory().getItemInMainHand());
+            seen(player.getInventory().getItemInOffHand());
+
+            final Location eye = player.getEyeLocation();
+            for (Entity entity : player.getNearbyEntities(distance, distance, distance)) {
+                if (!(entity instanceof ItemFrame)) {
+                    continue;
+                }
+
+                final ItemFrame frame = (ItemFrame) entity;
+                final int mapID = getMapID(frame.getItem());
+                if (mapID == 0) {
+                    continue;
+                }
+
+                if (lastSeen.containsKey(mapID)) {
+                    lastSeen.put(mapID, scanCount);
+                } else if (isVisible(eye, frame, distance)) {
+                    MapInitEvent.initMap(mapID);
+                }
+            }
+        }
+
+        releaseUnseen();
+    }
+
+    private static void seen(ItemStack item) {
+        final int mapID = getMapID(item);
+        if (mapID != 0 && lastSeen.containsKey(mapID)) {
+            lastSeen.put(mapID, scanCount);
+        }
+    }
+
+    /**
+     * @return the ID of the map, or 0 if the item is not a map of ImageOnMap, so the vanilla maps
+     *     are never looked up again.
+     */
+    private static int getMapID(ItemStack item) {
+        if (item == null || item.getType() != Material.FILLED_MAP) {
+            return 0;
+        }
+        final int mapID = MapManager.getMapIdFromItemStack(item);
+        return MapManager.managesMap(mapID) ? mapID : 0;
+    }
+
+    /**
+     * Checks if a player can see an item frame: close enough, in front of the player (unless
+     * very close), and with the frame facing the player.
+     */
+    private static boolean isVisible(Location eye, ItemFrame frame, double distance) {
+        final Vector toFrame = frame.getLocation().toVector().subtract(eye.toVector());
+        final double distanceSquared = toFrame.lengthSquared();
+        if (distanceSquared > distance * distance) {
+            return false;
+        }
+        if (frame.getFacing().getDirection().dot(toFrame) > 0) {
+            return false;
+        }
+        return distanceSquared <= NEAR_DISTANCE * NEAR_DISTANCE || eye.getDirection().dot(toFrame) > 0;
+    }
+
+    private static void releaseUnseen() {
+        final int releaseScans = Math.max(1, PluginConfiguration.RENDER_RELEASE_DELAY.get());
+        final Iterator<Map.Entry<Integer, Integer>> iterator = lastSeen.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, Integer> entry = iterator.next();
+            if (scanCount - entry.getValue() < releaseScans) {
+                continue;
+            }
+
+            iterator.remove();
+            final MapView map = Bukkit.getMap(entry.getKey());
+            if (map != null && Renderer.isHandled(map)) {
+                Renderer.removeRenderers(map);
+            }
+        }
+    }
+}
@@ -39,6 +39,7 @@ package fr.moribus.imageonmap.image;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import org.bukkit.map.MapPalette;
 
 /**
  * This class represents an image split into pieces
@@ -48,7 +49,7 @@ public class PosterImage {
     private static final int HEIGHT = 128;
 
     private final BufferedImage originalImage;
-    private BufferedImage[] cutImages;
+    private byte[][] cutColors;
     private int lines;
     private int columns;
     private int cutImagesCount;
@@ -85,31 +86,19 @@ public class PosterImage {
         cutImagesCount = columns * lines;
     }
 
+    /**
+     * Converts every part of the poster to map colors.
+     * Only the colors are kept (16 KB per part); the part images are generated again on demand
+     * by {@link #getImageAt(int)}.
+     */
     public void splitImages() {
-        try {
-            cutImages = new BufferedImage[cutImagesCount];
-
-            int imageX;
-            int imageY = remainderY == 0 ? 0 : (remainderY - HEIGHT) / 2;
-            for (int i = 0; i < lines; i++) {
-                imageX = remainderX == 0 ? 0 : (remainderX - WIDTH) / 2;
-                for (int j = 0; j < columns; j++) {
-                    cutImages[i * columns + j] = makeSubImage(originalImage, imageX, imageY);
-                    imageX += WIDTH;
-                }
-                imageY += HEIGHT;
-            }
-        } catch (final Throwable e) {
-            if (cutImages != null) {
-                for (BufferedImage bi : cutImages) {
-                    if (bi != null) {
-                        bi.flush();//Safe to free
-                    }
-                }
-            }
-            throw e;
-        }
+        cutColors = new byte[cutImagesCount][];
 
+        for (int i = 0; i < cutImagesCount; i++) {
+            final BufferedImage part = getImageAt(i);
+            cutColors[i] = MapPalette.imageToBytes(part);
+            part.flush();//Safe to free
+        }
     }
 
     /**
@@ -130,14 +119,36 @@ public class PosterImage {
     }
 
     /**
+     * Generates the split images. Each call creates new images.
+     *
      * @return the split images
      */
     public BufferedImage[] getImages() {
-        return cutImages;
+        final BufferedImage[] images = new BufferedImage[cutImagesCount];
+        for (int i = 0; i < cutImagesCount; i++) {
+            images[i] = getImageAt(i);
+        }
+        return images;
     }
 
+    /**
+     * Generates the image of a part of the poster. Each call creates a new image.
+     *
+     * @param i The index of the part.
+     * @return the part image.
+     */
     public BufferedImage getImageAt(int i) {
-        return cutImages[i];
+        final int imageX = (remainderX == 0 ? 0 : (remainderX - WIDTH) / 2) + getColumnAt(i) * WIDTH;
+        final int imageY = (remainderY == 0 ? 0 : (remainderY - HEIGHT) / 2) + getLineAt(i) * HEIGHT;
+        return makeSubImage(originalImage, imageX, imageY);
+    }
+
+    /**
+     * @param i The index of the part.
+     * @return the map colors of the part, computed by {@link #splitImages()}.
+     */
+    public byte[] getColorsAt(int i) {
+        return cutColors[i];
     }
 
     public BufferedImage getImage() {
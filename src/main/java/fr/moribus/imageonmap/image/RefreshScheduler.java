@@ -0,0 +1,308 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.map.ImageMap;
+import fr.zcraft.quartzlib.components.i18n.I;
+import fr.zcraft.quartzlib.components.worker.WorkerCallback;
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Refreshes the maps having a source URL.
+ *
+ * <p>The maps are grouped by URL, so each URL is downloaded once for all the maps showing it,
+ * at the shortest refresh interval of these maps. Downloads use conditional requests
+ * ({@code If-None-Match} and {@code If-Modified-Since}), and a bounded pool of threads. The
+ * downloaded images go through the incremental update of {@link ImageRendererExecutor}, so
+ * only the changed tiles are sent again.</p>
+ */
+public final class RefreshScheduler {
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private static final Map<String, Feed> feeds = new HashMap<>();
+    private static ExecutorService pollers = null;
+    private static BukkitTask pollTask = null;
+
+    private RefreshScheduler() {
+    }
+
+    public static synchronized void init() {
+        pollers = Executors.newFixedThreadPool(Math.max(1, PluginConfiguration.REFRESH_MAX_CONCURRENT_POLLS.get()),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "ImageOnMap refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pollTask = Bukkit.getScheduler().runTaskTimer(ImageOnMap.getPlugin(), RefreshScheduler::pollDueFeeds,
+                20L, 20L);
+    }
+
+    public static synchronized void exit() {
+        if (pollTask != null) {
+            pollTask.cancel();
+            pollTask = null;
+        }
+        if (pollers != null) {
+            pollers.shutdownNow();
+            pollers = null;
+        }
+        feeds.clear();
+    }
+
+    /**
+     * Starts refreshing a map, if it has a source URL.
+     *
+     * @param map The map.
+     */
+    public static synchronized void register(ImageMap map) {
+        final String sourceURL = map.getSourceURL();
+        if (sourceURL != null) {
+            feeds.computeIfAbsent(sourceURL, Feed::new).maps.add(map);
+        }
+    }
+
+    /**
+     * Stops refreshing a map.
+     *
+     * @param map The map.
+     */
+    public static synchronized void unregister(ImageMap map) {
+        final String sourceURL = map.getSourceURL();
+        final Feed feed = sourceURL != null ? feeds.get(sourceURL) : null;
+        if (feed == null) {
+            return;
+        }
+
+        feed.maps.remove(map);
+        if (feed.maps.isEmpty()) {
+            feeds.remove(sourceURL);
+        }
+    }
+
+    public static synchronized int getFeedCount() {
+        return feeds.size();
+    }
+
+    private static synchronized void pollDueFeeds() {
+        if (pollers == null) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long minInterval = Math.max(1, PluginConfiguration.REFRESH_MIN_INTERVAL.get());
+
+        for (final Feed feed : feeds.values()) {
+            if (feed.polling) {
+                continue;
+            }
+
+            long interval = Long.MAX_VALUE;
+            for (ImageMap map : feed.maps) {
+                interval = Math.min(interval, Math.max(minInterval, map.getRefreshInterval()));
+            }
+
+            // The maps were rendered when they were loaded or their source was set.
+            if (feed.nextPoll == 0) {
+                feed.nextPoll = now + interval * 1000;
+                continue;
+            }
+            if (feed.nextPoll > now) {
+                continue;
+            }
+
+            feed.polling = true;
+            feed.nextPoll = now + interval * 1000;
+            pollers.submit(() -> poll(feed));
+        }
+    }
+
+    private static void poll(Feed feed) {
+        try {
+            final Download download = download(feed);
+            if (download == null) {
+                return;
+            }
+
+            final List<ImageMap> maps;
+            synchronized (RefreshScheduler.class) {
+                maps = new ArrayList<>(feed.maps);
+            }
+            if (maps.isEmpty()) {
+                download.saveValidators(feed);
+                return;
+            }
+
+            // The validators are only kept once every map was updated, so a failed refresh is
+            // downloaded again on the next poll instead of being answered "not modified".
+            final AtomicInteger remainingMaps = new AtomicInteger(maps.size());
+            final AtomicBoolean failed = new AtomicBoolean(false);
+            for (final ImageMap map : maps) {
+                ImageRendererExecutor.update(download.image, map.getRefreshScaling(), map,
+                        new WorkerCallback<Integer>() {
+                            @Override
+                            public void finished(Integer skippedCount) {
+                                PluginLogger.info("Refreshed map {0} from {1} ({2} of {3} parts unchanged)",
+                                        map.getId(), feed.url, skippedCount, map.getMapCount());
+                                if (remainingMaps.decrementAndGet() == 0 && !failed.get()) {
+                                    download.saveValidators(feed);
+                                }
+                            }
+
+                            @Override
+                            public void errored(Throwable exception) {
+                                PluginLogger.warning("Could not refresh map {0} from {1}: {2}",
+                                        map.getId(), feed.url, exception.getMessage());
+                                failed.set(true);
+                                remainingMaps.decrementAndGet();
+                            }
+                        });
+            }
+        } catch (IOException ex) {
+            PluginLogger.warning("Could not refresh maps from {0}: {1}", feed.url, ex.getMessage());
+        } finally {
+            synchronized (RefreshScheduler.class) {
+                feed.polling = false;
+            }
+        }
+    }
+
+    /**
+     * Downloads the image of a feed, if it changed since the last download. The validators of
+     * the response are not saved in the feed.
+     *
+     * @return the image and its validators, or null if it did not change.
+     */
+    private static Download download(Feed feed) throws IOException {
+        final URLConnection connection = new URL(feed.url).openConnection();
+        connection.addRequestProperty("User-Agent", ImageRendererExecutor.USER_AGENT);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+
+        String etag = null;
+        long lastModified = 0;
+        if (connection instanceof HttpURLConnection) {
+            final HttpURLConnection httpConnection = (HttpURLConnection) connection;
+            synchronized (RefreshScheduler.class) {
+                if (feed.etag != null) {
+                    httpConnection.setRequestProperty("If-None-Match", feed.etag);
+                }
+                if (feed.lastModified > 0) {
+                    httpConnection.setIfModifiedSince(feed.lastModified);
+                }
+            }
+
+            final int httpCode = httpConnection.getResponseCode();
+            if (httpCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                httpConnection.disconnect();
+                return null;
+            }
+            if ((httpCode / 100) != 2) {
+                throw new IOException(I.t("HTTP error: {0} {1}", httpCode, httpConnection.getResponseMessage()));
+            }
+
+            etag = httpConnection.getHeaderField("ETag");
+            lastModified = httpConnection.getLastModified();
+        }
+
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(ImageRendererExecutor.download(connection)));
+        if (image == null) {
+            throw new IOException(I.t("The given URL is not a valid image"));
+        }
+        return new Download(image, etag, lastModified);
+    }
+
+    /**
+     * A downloaded image, with the validators of the response.
+     */
+    private static final class Download {
+        private final BufferedImage image;
+        private final String etag;
+        private final long lastModified;
+
+        private Download(BufferedImage image, String etag, long lastModified) {
+            this.image = image;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        private void saveValidators(Feed feed) {
+            synchronized (RefreshScheduler.class) {
+                feed.etag = etag;
+                feed.lastModified = lastModified;
+            }
+        }
+    }
+
+    /**
+     * The maps showing the same URL. The polling state and the validators are guarded by the
+     * scheduler.
+     */
+    private static final class Feed {
+        private final String url;
+        private final Set<ImageMap> maps = new HashSet<>();
+        private long nextPoll = 0;
+        private boolean polling = false;
+        private String etag = null;
+        private long lastModified = 0;
+
+        private Feed(String url) {
+            this.url = url;
+        }
+    }
+}
@@ -36,41 +36,76 @@
 
 package fr.moribus.imageonmap.image;
 
+import fr.moribus.imageonmap.map.ImageMap;
 import fr.zcraft.quartzlib.tools.PluginLogger;
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.map.MapCanvas;
+import org.bukkit.map.MapPalette;
 import org.bukkit.map.MapRenderer;
 import org.bukkit.map.MapView;
 
+/**
+ * Renders an ImageOnMap tile.
+ *
+ * <p>The renderer is contextual: Bukkit gives each player its own canvas, so the tile
+ * is drawn once per player, and drawn again only when the tile changes (or when the
+ * player reconnects, as a new {@link Player} instance gets a new blank canvas). When
+ * redrawn, only the rectangle of pixels that changed since the version in the player's
+ * canvas is written, so the server sends only that part of the map.</p>
+ *
+ * <p>Animated tiles change often, so players get their next frame at most once per frame
+ * interval of their world (see {@link MapAnimator#getFrameInterval(org.bukkit.World)}).</p>
+ */
 public class Renderer extends MapRenderer {
-    private BufferedImage image;
+    /**
+     * Rendering happens on the main thread only, so the tiles are copied from the arena
+     * into this single buffer before being drawn.
+     */
+    private static final byte[] renderBuffer = new byte[MapColorArena.TILE_SIZE];
+
+    /**
+     * The number of changes whose dirty rectangle is kept. Players that missed more changes
+     * get the whole tile again.
+     */
+    private static final int DIRTY_HISTORY = 32;
+
+    /**
+     * The version of the tile drawn in each player's canvas. Weak keys, so disconnected
+     * players are forgotten without any cleanup.
+     */
+    private final Map<Player, Viewer> viewers = new WeakHashMap<>();
+
+    private final int mapID;
     private boolean dithering = false;
+    private volatile boolean animated = false;
 
-    protected Renderer() {
-        this(null);
-    }
+    /**
+     * Incremented each time the colors of the tile change.
+     */
+    private int version = 0;
 
-    protected Renderer(BufferedImage image) {
-        this.image = image;
+    /**
+     * The {@link DirtyRect} of each of the last changes, indexed by version.
+     */
+    private final int[] dirtyRects = new int[DIRTY_HISTORY];
+
+    protected Renderer(int mapID) {
+        super(true);
+        this.mapID = mapID;
     }
 
     public static boolean isHandled(MapView map) {
-        if (map == null) {
-            return false;
-        }
-        for (MapRenderer renderer : map.getRenderers()) {
-            if (renderer instanceof Renderer) {
-                return true;
-            }
-        }
-        return false;
+        return map != null && getRenderer(map) != null;
     }
 
     public static void installRenderer(PosterImage image, int[] mapsIds) {
         for (int i = 0; i < mapsIds.length; i++) {
-            installRenderer(image.getImageAt(i), mapsIds[i]);
+            installRenderer(image.getColorsAt(i), mapsIds[i]);
         }
     }
 
@@ -83,8 +118,61 @@ public class Renderer extends MapRenderer {
         }
     }
 
+    /**
+     * Installs a renderer showing the given colors.
+     *
+     * @param colors The tile colors.
+     * @param mapID  The Minecraft map ID.
+     * @return the renderer, or {@code null} if the Minecraft map does not exist.
+     */
+    public static Renderer installRenderer(byte[] colors, int mapID) {
+        MapView map = Bukkit.getMap(mapID);
+        if (map == null) {
+            PluginLogger.warning("Could not install renderer for map {0}: the Minecraft map does not exist", mapID);
+            return null;
+        }
+        final Renderer renderer = installRenderer(map);
+        renderer.setColors(colors);
+        return renderer;
+    }
+
+    /**
+     * Shows new colors on a map. The installed renderer is kept if there is one, so the players
+     * are only sent the pixels that changed; a new renderer is installed otherwise. Any
+     * animation of the map is stopped.
+     *
+     * @param colors The tile colors.
+     * @param mapID  The Minecraft map ID.
+     * @return the renderer, or {@code null} if the Minecraft map does not exist.
+     */
+    public static Renderer updateRenderer(byte[] colors, int mapID) {
+        MapView map = Bukkit.getMap(mapID);
+        if (map == null) {
+            PluginLogger.warning("Could not update renderer for map {0}: the Minecraft map does not exist", mapID);
+            return null;
+        }
+
+        Renderer renderer = getRenderer(map);
+        if (renderer == null) {
+            renderer = installRenderer(map);
+        } else {
+            MapAnimator.stop(mapID);
+        }
+        renderer.setColors(colors);
+        return renderer;
+    }
+
+    private static Renderer getRenderer(MapView map) {
+        for (MapRenderer renderer : map.getRenderers()) {
+            if (renderer instanceof Renderer) {
+                return (Renderer) renderer;
+            }
+        }
+        return null;
+    }
+
     public static Renderer installRenderer(MapView map) {
-        Renderer renderer = new Renderer();
+        Renderer renderer = new Renderer(map.getId());
         removeRenderers(map);
         map.addRenderer(renderer);
         return renderer;
@@ -94,27 +182,125 @@ public class Renderer extends MapRenderer {
         for (MapRenderer renderer : map.getRenderers()) {
             map.removeRenderer(renderer);
         }
+        MapAnimator.stop(map.getId());
+        MapColorArena.release(map.getId());
     }
 
     @Override
     public void render(MapView v, final MapCanvas canvas, Player p) {
-        //Render only once to avoid overloading the server
+        int rect = DirtyRect.EMPTY;
+        synchronized (this) {
+            // Each player's canvas is kept by Bukkit, so we only draw into it when it's outdated.
+            if (!MapColorArena.contains(mapID)) {
+                return;
+            }
+
+            final Viewer viewer = viewers.computeIfAbsent(p, player -> new Viewer());
+            if (viewer.version == version) {
+                return;
+            }
+
+            final int tick = MapAnimator.getCurrentTick();
+            if (animated && viewer.version != Viewer.NEVER_DRAWN
+                    && tick - viewer.tick < MapAnimator.getFrameInterval(p.getWorld())) {
+                return;
+            }
+
+            if (viewer.version == Viewer.NEVER_DRAWN || version - viewer.version > DIRTY_HISTORY) {
+                rect = DirtyRect.FULL;
+            } else {
+                for (int changed = viewer.version + 1; changed - version <= 0; changed++) {
+                    rect = DirtyRect.union(rect, dirtyRects[Math.floorMod(changed, DIRTY_HISTORY)]);
+                }
+            }
+
+            viewer.version = version;
+            viewer.tick = tick;
+            MapColorArena.read(mapID, renderBuffer);
+        }
+
+        for (int y = DirtyRect.getTop(rect), bottom = DirtyRect.getBottom(rect); y <= bottom; y++) {
+            for (int x = DirtyRect.getLeft(rect), right = DirtyRect.getRight(rect); x <= right; x++) {
+                canvas.setPixel(x, y, renderBuffer[y * ImageMap.WIDTH + x]);
+            }
+        }
+    }
+
+    public int getMapID() {
+        return mapID;
+    }
+
+    public boolean isAnimated() {
+        return animated;
+    }
+
+    void setAnimated(boolean animated) {
+        this.animated = animated;
+    }
+
+    /**
+     * @return a copy of the color bytes of the tile, or {@code null} if no image was loaded yet.
+     */
+    public byte[] getColors() {
+        final byte[] colors = new byte[MapColorArena.TILE_SIZE];
+        return MapColorArena.read(mapID, colors) ? colors : null;
+    }
+
+    /**
+     * Converts the given image to map colors and marks the tile as dirty for every player.
+     * The image is not kept, so it can be flushed by the caller once this returns.
+     *
+     * @param image The tile image, 128 × 128 pixels.
+     */
+    public void setImage(BufferedImage image) {
         if (image == null) {
+            setColors((byte[]) null);
             return;
         }
-        if (dithering) {
-            canvas.drawImage(0, 0, Ditherer.floydSteinbergDithering(image));
+        setColors(MapPalette.imageToBytes(dithering ? Ditherer.floydSteinbergDithering(image) : image));
+    }
+
+    /**
+     * Copies the given colors off-heap and marks the tile as dirty for every player.
+     *
+     * @param colors The tile colors, {@link MapColorArena#TILE_SIZE} remaining bytes.
+     */
+    public synchronized void setColors(ByteBuffer colors) {
+        markDirty(MapColorArena.store(mapID, colors));
+    }
+
+    /**
+     * Stores the given colors off-heap and marks the tile as dirty for every player.
+     *
+     * @param colors The tile colors, or {@code null} to unload the tile.
+     */
+    public synchronized void setColors(byte[] colors) {
+        if (colors == null) {
+            MapColorArena.release(mapID);
+            markDirty(DirtyRect.FULL);
         } else {
-            canvas.drawImage(0, 0, image);
+            markDirty(MapColorArena.store(mapID, colors));
         }
-        image = null;
     }
 
-    public BufferedImage getImage() {
-        return image;
+    /**
+     * Records a change of the tile. Nothing is recorded if no pixel changed, so the players
+     * are not sent the same colors again.
+     *
+     * @param rect The {@link DirtyRect} of the pixels that changed.
+     */
+    private void markDirty(int rect) {
+        if (rect == DirtyRect.EMPTY) {
+            return;
+        }
+        version++;
+        dirtyRects[Math.floorMod(version, DIRTY_HISTORY)] = rect;
     }
 
-    public void setImage(BufferedImage image) {
-        this.image = image;
+    private static final class Viewer {
+        private static final int NEVER_DRAWN = -1;
+
+        private int version = NEVER_DRAWN;
+        private int tick = 0;
     }
 }
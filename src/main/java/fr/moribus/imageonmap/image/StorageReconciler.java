@@ -0,0 +1,558 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.map.MapManager;
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Reconciles the stored images with the maps, in the background.
+ *
+ * <p>A pass goes through the files of the images directory, the tiles of the {@link TileStore}
+ * and the maps, at most {@code reconciler-rate} entries per second, and finds:</p>
+ * <ul>
+ *     <li>the orphaned files and tiles, whose map does not exist anymore;</li>
+ *     <li>the maps whose image is missing;</li>
+ *     <li>the dangling map IDs, created for a render that never completed.</li>
+ * </ul>
+ *
+ * <p>With {@code reconciler-reclaim}, the orphaned files and tiles are deleted at the end of the
+ * pass, and their map IDs, with the dangling ones, are put in a pool used before creating new
+ * Minecraft maps. These map IDs may still be on map items, in inventories or item frames: they
+ * are only reused {@code reconciler-reuse-delay} days after being reclaimed, and such items
+ * then show the new image. The progress of the pass, its findings and the pool are saved in
+ * {@code reconciler.yml}, so a pass resumes where it stopped after a restart.</p>
+ */
+public final class StorageReconciler {
+    private static final String STATE_FILE_NAME = "reconciler.yml";
+
+    /**
+     * A map ID created for a render is dangling once it has been unused for this long.
+     */
+    private static final long ALLOCATION_GRACE_PERIOD = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The number of steps between two saves of the state, during a pass.
+     */
+    private static final int SAVE_INTERVAL = 30;
+
+    private static final Pattern TILE_FILE = Pattern.compile("map(-?[0-9]+)\\.(png|anim)");
+
+    public enum Phase {
+        IDLE,
+        FILES,
+        TILES,
+        MAPS
+    }
+
+    private static BukkitTask reconcileTask = null;
+
+    /* The state of the pass, guarded by the class. */
+    private static Phase phase = Phase.IDLE;
+    private static String fileCursor = null;
+    private static int mapIDCursor = Integer.MIN_VALUE;
+    private static long passStarted = 0;
+    private static long lastPassFinished = 0;
+    private static final TreeSet<String> orphanedFiles = new TreeSet<>();
+    private static final TreeSet<Integer> orphanedTiles = new TreeSet<>();
+    private static final TreeSet<Integer> missingImages = new TreeSet<>();
+    private static final TreeSet<Integer> danglingMapIDs = new TreeSet<>();
+    private static String[] phaseFiles = null;
+    private static int[] phaseMapIDs = null;
+    private static int phasePosition = 0;
+    private static int stepsSinceSave = 0;
+
+    /* The map IDs created for renders, and the free ones with their reclaim time, guarded by allocations. */
+    private static final Map<Integer, Long> allocations = new HashMap<>();
+    private static final Map<Integer, Long> freeMapIDs = new LinkedHashMap<>();
+
+    private static volatile boolean modified = false;
+
+    private StorageReconciler() {
+    }
+
+    public static void init() {
+        load();
+
+        final int rate = PluginConfiguration.RECONCILER_RATE.get();
+        if (rate > 0) {
+            // The first step waits for the server to be started.
+            reconcileTask = Bukkit.getScheduler().runTaskTimerAsynchronously(ImageOnMap.getPlugin(),
+                    StorageReconciler::step, 20L * 60, 20L);
+        }
+    }
+
+    public static void exit() {
+        if (reconcileTask != null) {
+            reconcileTask.cancel();
+            reconcileTask = null;
+        }
+        synchronized (StorageReconciler.class) {
+            save();
+        }
+    }
+
+    /**
+     * Records new Minecraft maps created for a render, until they are used by an image.
+     *
+     * @param mapsIDs The map IDs.
+     */
+    public static void mapsAllocated(int[] mapsIDs) {
+        final long now = System.currentTimeMillis();
+        synchronized (allocations) {
+            for (int mapID : mapsIDs) {
+                allocations.put(mapID, now);
+            }
+        }
+        modified = true;
+    }
+
+    /**
+     * Records that the Minecraft maps created for a render are now used by an image.
+     *
+     * @param mapsIDs The map IDs.
+     */
+    public static void mapsUsed(int[] mapsIDs) {
+        synchronized (allocations) {
+            for (int mapID : mapsIDs) {
+                allocations.remove(mapID);
+            }
+        }
+        modified = true;
+    }
+
+    /**
+     * Takes a reclaimed map ID, to be used instead of creating a new Minecraft map. Only the map
+     * IDs reclaimed at least {@code reconciler-reuse-delay} days ago are used. This must be called
+     * from the main thread.
+     *
+     * @return the map ID, or -1 if there is no free map ID.
+     */
+    public static int pollFreeMapID() {
+        final long reclaimedBefore = System.currentTimeMillis()
+                - TimeUnit.DAYS.toMillis(Math.max(0, PluginConfiguration.RECONCILER_REUSE_DELAY.get()));
+        synchronized (allocations) {
+            // The map IDs are in reclaim order.
+            final Iterator<Map.Entry<Integer, Long>> iterator = freeMapIDs.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Integer, Long> freeMapID = iterator.next();
+                if (freeMapID.getValue() > reclaimedBefore) {
+                    break;
+                }
+
+                final int mapID = freeMapID.getKey();
+                iterator.remove();
+                modified = true;
+                if (Bukkit.getMap(mapID) != null && !MapManager.managesMap(mapID)) {
+                    return mapID;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts a new pass now, or restarts the current one.
+     */
+    public static synchronized void startPass() {
+        phase = Phase.FILES;
+        fileCursor = null;
+        mapIDCursor = Integer.MIN_VALUE;
+        passStarted = System.currentTimeMillis();
+        orphanedFiles.clear();
+        orphanedTiles.clear();
+        missingImages.clear();
+        danglingMapIDs.clear();
+        phaseFiles = null;
+        phaseMapIDs = null;
+        modified = true;
+    }
+
+    private static synchronized void step() {
+        if (phase == Phase.IDLE) {
+            final int interval = Math.max(1, PluginConfiguration.RECONCILER_INTERVAL.get());
+            if (System.currentTimeMillis() - lastPassFinished < TimeUnit.HOURS.toMillis(interval)) {
+                return;
+            }
+            startPass();
+        }
+
+        int budget = PluginConfiguration.RECONCILER_RATE.get();
+        while (budget > 0 && phase != Phase.IDLE) {
+            switch (phase) {
+                case FILES:
+                    budget -= checkFiles(budget);
+                    break;
+                case TILES:
+                    budget -= checkTiles(budget);
+                    break;
+                case MAPS:
+                    budget -= checkMaps(budget);
+                    break;
+                default:
+                    budget = 0;
+                    break;
+            }
+        }
+
+        if (phase == Phase.IDLE || ++stepsSinceSave >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * Checks the files of the images directory, in name order.
+     *
+     * @return the number of entries checked.
+     */
+    private static int checkFiles(int budget) {
+        if (phaseFiles == null) {
+            final String[] names = ImageOnMap.getPlugin().getImagesDirectory().list();
+            phaseFiles = names != null ? names : new String[0];
+            Arrays.sort(phaseFiles);
+            phasePosition = 0;
+            while (fileCursor != null && phasePosition < phaseFiles.length
+                    && phaseFiles[phasePosition].compareTo(fileCursor) <= 0) {
+                phasePosition++;
+            }
+        }
+
+        int checked = 0;
+        while (checked < budget && phasePosition < phaseFiles.length) {
+            final String name = phaseFiles[phasePosition++];
+            final int mapID = getMapID(name);
+            if (mapID != -1 && !MapManager.managesMap(mapID) && !isAllocated(mapID)) {
+                orphanedFiles.add(name);
+            }
+            fileCursor = name;
+            checked++;
+        }
+
+        if (phasePosition >= phaseFiles.length) {
+            phaseFiles = null;
+            nextPhase(Phase.TILES);
+        }
+        modified = true;
+        return Math.max(1, checked);
+    }
+
+    private static int checkTiles(int budget) {
+        if (phaseMapIDs == null) {
+            phaseMapIDs = TileStore.getMapIDs();
+            phasePosition = firstAfterCursor(phaseMapIDs);
+        }
+
+        int checked = 0;
+        while (checked < budget && phasePosition < phaseMapIDs.length) {
+            final int mapID = phaseMapIDs[phasePosition++];
+            if (!MapManager.managesMap(mapID) && !isAllocated(mapID)) {
+                orphanedTiles.add(mapID);
+            }
+            mapIDCursor = mapID;
+            checked++;
+        }
+
+        if (phasePosition >= phaseMapIDs.length) {
+            phaseMapIDs = null;
+            nextPhase(Phase.MAPS);
+        }
+        modified = true;
+        return Math.max(1, checked);
+    }
+
+    private static int checkMaps(int budget) {
+        if (phaseMapIDs == null) {
+            phaseMapIDs = MapManager.getManagedMapsIDs();
+            phasePosition = firstAfterCursor(phaseMapIDs);
+        }
+
+        int checked = 0;
+        while (checked < budget && phasePosition < phaseMapIDs.length) {
+            final int mapID = phaseMapIDs[phasePosition++];
+            if (!TileStore.contains(mapID) && !ImageOnMap.getPlugin().getImageFile(mapID).exists()
+                    && !MapAnimator.getFile(mapID).exists()) {
+                missingImages.add(mapID);
+            }
+            mapIDCursor = mapID;
+            checked++;
+        }
+
+        if (phasePosition >= phaseMapIDs.length) {
+            phaseMapIDs = null;
+            finishPass();
+        }
+        modified = true;
+        return Math.max(1, checked);
+    }
+
+    private static void nextPhase(Phase next) {
+        phase = next;
+        mapIDCursor = Integer.MIN_VALUE;
+    }
+
+    private static void finishPass() {
+        final long danglingBefore = System.currentTimeMillis() - ALLOCATION_GRACE_PERIOD;
+        synchronized (allocations) {
+            for (Map.Entry<Integer, Long> allocation : allocations.entrySet()) {
+                if (allocation.getValue() < danglingBefore && !MapManager.managesMap(allocation.getKey())) {
+                    danglingMapIDs.add(allocation.getKey());
+                }
+            }
+        }
+
+        PluginLogger.info("Storage reconciliation done: {0} orphaned files, {1} orphaned tiles, "
+                        + "{2} maps with a missing image, {3} dangling map IDs.",
+                orphanedFiles.size(), orphanedTiles.size(), missingImages.size(), danglingMapIDs.size());
+        if (!missingImages.isEmpty()) {
+            PluginLogger.warning("The image of these maps is missing: {0}", missingImages);
+        }
+
+        if (PluginConfiguration.RECONCILER_RECLAIM.get()) {
+            reclaim();
+        }
+
+        phase = Phase.IDLE;
+        lastPassFinished = System.currentTimeMillis();
+    }
+
+    /**
+     * Deletes the orphaned files and tiles, and puts their map IDs and the dangling ones in the
+     * free pool. The deletions are queued in the image IO worker before the map IDs can be
+     * reused, so they never delete the image of a new map.
+     */
+    private static void reclaim() {
+        final Set<Integer> reclaimedMapIDs = new TreeSet<>(orphanedTiles);
+        for (String name : orphanedFiles) {
+            final Matcher tileFile = TILE_FILE.matcher(name);
+            if (tileFile.matches()) {
+                reclaimedMapIDs.add(Integer.parseInt(tileFile.group(1)));
+            } else {
+                final int[] fullImageMapsIDs = FullImageStore.parseFileName(name);
+                if (fullImageMapsIDs != null) {
+                    ImageIOExecutor.deleteFullImage(fullImageMapsIDs[0], fullImageMapsIDs[1]);
+                }
+            }
+        }
+        reclaimedMapIDs.addAll(danglingMapIDs);
+
+        final long now = System.currentTimeMillis();
+        int reclaimedCount = 0;
+        synchronized (allocations) {
+            for (int mapID : reclaimedMapIDs) {
+                if (MapManager.managesMap(mapID) || (isAllocated(mapID) && !danglingMapIDs.contains(mapID))
+                        || freeMapIDs.containsKey(mapID)) {
+                    continue;
+                }
+                ImageIOExecutor.deleteTile(mapID);
+                allocations.remove(mapID);
+                freeMapIDs.put(mapID, now);
+                reclaimedCount++;
+            }
+        }
+
+        PluginLogger.info("{0} map IDs reclaimed, {1} free map IDs available.", reclaimedCount, getFreeMapIDCount());
+        orphanedFiles.clear();
+        orphanedTiles.clear();
+        danglingMapIDs.clear();
+    }
+
+    /**
+     * @return the map ID of an image file, the first one for a full image, or -1 for the other files.
+     */
+    private static int getMapID(String fileName) {
+        final Matcher matcher = TILE_FILE.matcher(fileName);
+        if (!matcher.matches()) {
+            final int[] fullImageMapsIDs = FullImageStore.parseFileName(fileName);
+            return fullImageMapsIDs != null ? fullImageMapsIDs[0] : -1;
+        }
+        try {
+            return Integer.parseInt(matcher.group(1));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static boolean isAllocated(int mapID) {
+        synchronized (allocations) {
+            return allocations.containsKey(mapID);
+        }
+    }
+
+    private static int firstAfterCursor(int[] mapIDs) {
+        int position = Arrays.binarySearch(mapIDs, mapIDCursor);
+        return position >= 0 ? position + 1 : -position - 1;
+    }
+
+    public static synchronized Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the progress of the current phase, from 0 to 1.
+     */
+    public static synchronized double getPhaseProgress() {
+        if (phase == Phase.FILES && phaseFiles != null && phaseFiles.length > 0) {
+            return (double) phasePosition / phaseFiles.length;
+        } else if (phase != Phase.FILES && phaseMapIDs != null && phaseMapIDs.length > 0) {
+            return (double) phasePosition / phaseMapIDs.length;
+        }
+        return 0;
+    }
+
+    public static synchronized long getLastPassFinished() {
+        return lastPassFinished;
+    }
+
+    public static synchronized int getOrphanedFileCount() {
+        return orphanedFiles.size();
+    }
+
+    public static synchronized int getOrphanedTileCount() {
+        return orphanedTiles.size();
+    }
+
+    public static synchronized int getMissingImageCount() {
+        return missingImages.size();
+    }
+
+    public static synchronized int getDanglingMapIDCount() {
+        return danglingMapIDs.size();
+    }
+
+    public static int getFreeMapIDCount() {
+        synchronized (allocations) {
+            return freeMapIDs.size();
+        }
+    }
+
+    private static File getStateFile() {
+        return new File(ImageOnMap.getPlugin().getDataFolder(), STATE_FILE_NAME);
+    }
+
+    private static synchronized void load() {
+        final File file = getStateFile();
+        if (!file.isFile()) {
+            return;
+        }
+
+        final YamlConfiguration state = YamlConfiguration.loadConfiguration(file);
+        try {
+            phase = Phase.valueOf(state.getString("phase", Phase.IDLE.name()));
+        } catch (IllegalArgumentException ex) {
+            phase = Phase.IDLE;
+        }
+        fileCursor = state.getString("file-cursor");
+        mapIDCursor = state.getInt("map-id-cursor", Integer.MIN_VALUE);
+        passStarted = state.getLong("pass-started");
+        lastPassFinished = state.getLong("last-pass-finished");
+        orphanedFiles.addAll(state.getStringList("orphaned-files"));
+        orphanedTiles.addAll(state.getIntegerList("orphaned-tiles"));
+        missingImages.addAll(state.getIntegerList("missing-images"));
+        danglingMapIDs.addAll(state.getIntegerList("dangling-map-ids"));
+
+        synchronized (allocations) {
+            loadMapIDs(state.getConfigurationSection("free-map-ids"), freeMapIDs);
+            loadMapIDs(state.getConfigurationSection("allocations"), allocations);
+        }
+    }
+
+    private static void loadMapIDs(ConfigurationSection section, Map<Integer, Long> mapIDs) {
+        if (section == null) {
+            return;
+        }
+        for (String key : section.getKeys(false)) {
+            try {
+                mapIDs.put(Integer.parseInt(key), section.getLong(key));
+            } catch (NumberFormatException ignored) {
+                // Not a map ID.
+            }
+        }
+    }
+
+    private static void save() {
+        stepsSinceSave = 0;
+        if (!modified) {
+            return;
+        }
+        modified = false;
+
+        final YamlConfiguration state = new YamlConfiguration();
+        state.set("phase", phase.name());
+        state.set("file-cursor", fileCursor);
+        state.set("map-id-cursor", mapIDCursor);
+        state.set("pass-started", passStarted);
+        state.set("last-pass-finished", lastPassFinished);
+        state.set("orphaned-files", new ArrayList<>(orphanedFiles));
+        state.set("orphaned-tiles", new ArrayList<>(orphanedTiles));
+        state.set("missing-images", new ArrayList<>(missingImages));
+        state.set("dangling-map-ids", new ArrayList<>(danglingMapIDs));
+
+        synchronized (allocations) {
+            for (Map.Entry<Integer, Long> freeMapID : freeMapIDs.entrySet()) {
+                state.set("free-map-ids." + freeMapID.getKey(), freeMapID.getValue());
+            }
+            for (Map.Entry<Integer, Long> allocation : allocations.entrySet()) {
+                state.set("allocations." + allocation.getKey(), allocation.getValue());
+            }
+        }
+
+        try {
+            state.save(getStateFile());
+        } catch (IOException ex) {
+            PluginLogger.error("Could not save the storage reconciliation state", ex);
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Persistent storage of the map colors of every tile, in a single memory-mapped file.
+ *
+ * <p>Each map ID is stored in a fixed slot of {@link MapColorArena#TILE_SIZE} bytes of the
+ * data file, so a tile is read without any decoding nor file opening. The map ID to slot
+ * index is kept in a separate append-only journal, replayed on startup. Slots of deleted
+ * tiles are reused by new tiles, and {@link #compact()} moves the last tiles into the holes
+ * so the data file can be shrunk.</p>
+ */
+public final class TileStore {
+    private static final String DATA_FILE_NAME = "tiles.dat";
+    private static final String INDEX_FILE_NAME = "tiles.idx";
+
+    /**
+     * The data file is mapped by regions of this many slots (4 MiB).
+     */
+    private static final int SLOTS_PER_REGION = 256;
+    private static final long REGION_SIZE = (long) SLOTS_PER_REGION * MapColorArena.TILE_SIZE;
+
+    private static final int INDEX_MAGIC = 0x494F4D54;
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * The slot written in the index journal when a tile is deleted.
+     */
+    private static final int DELETED_SLOT = -1;
+
+    private static final List<MappedByteBuffer> regions = new ArrayList<>();
+    private static final Map<Integer, Integer> slots = new HashMap<>();
+    private static final TreeSet<Integer> freeSlots = new TreeSet<>();
+    private static int slotCount = 0;
+
+    /**
+     * Hashes of the stored tiles, computed on write or on the first comparison.
+     */
+    private static final Map<Integer, Long> hashes = new HashMap<>();
+
+    private static File dataFile;
+    private static File indexFile;
+    private static FileChannel dataChannel;
+    private static DataOutputStream indexOutput;
+
+    private TileStore() {
+    }
+
+    /**
+     * Opens the tile store of the given directory, creating it if needed.
+     *
+     * @param directory The directory containing the store files.
+     * @throws IOException if the store could not be opened.
+     */
+    public static synchronized void open(File directory) throws IOException {
+        if (dataChannel != null) {
+            close();
+        }
+
+        dataFile = new File(directory, DATA_FILE_NAME);
+        indexFile = new File(directory, INDEX_FILE_NAME);
+
+        readIndex();
+
+        slotCount = 0;
+        for (int slot : slots.values()) {
+            slotCount = Math.max(slotCount, slot + 1);
+        }
+
+        final boolean[] usedSlots = new boolean[slotCount];
+        for (int slot : slots.values()) {
+            usedSlots[slot] = true;
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!usedSlots[slot]) {
+                freeSlots.add(slot);
+            }
+        }
+
+        dataChannel = new RandomAccessFile(dataFile, "rw").getChannel();
+
+        // Space after the last used region is left by an interrupted compaction.
+        final long regionsCount = (slotCount + SLOTS_PER_REGION - 1) / SLOTS_PER_REGION;
+        if (dataChannel.size() > regionsCount * REGION_SIZE) {
+            dataChannel.truncate(regionsCount * REGION_SIZE);
+        }
+        for (int region = 0; region < regionsCount; region++) {
+            mapRegion(region);
+        }
+
+        // The journal is rewritten on startup, so it only contains live entries.
+        writeIndexSnapshot();
+    }
+
+    /**
+     * Flushes and closes the tile store.
+     */
+    public static synchronized void close() {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+
+        try {
+            if (indexOutput != null) {
+                indexOutput.close();
+            }
+            if (dataChannel != null) {
+                dataChannel.close();
+            }
+        } catch (IOException ex) {
+            PluginLogger.error("Could not close the tile store", ex);
+        }
+
+        regions.clear();
+        slots.clear();
+        hashes.clear();
+        freeSlots.clear();
+        slotCount = 0;
+        indexOutput = null;
+        dataChannel = null;
+    }
+
+    public static synchronized boolean contains(int mapID) {
+        return slots.containsKey(mapID);
+    }
+
+    /**
+     * @return the map IDs of all the stored tiles, sorted.
+     */
+    public static synchronized int[] getMapIDs() {
+        final int[] mapIDs = new int[slots.size()];
+        int i = 0;
+        for (int mapID : slots.keySet()) {
+            mapIDs[i++] = mapID;
+        }
+        Arrays.sort(mapIDs);
+        return mapIDs;
+    }
+
+    /**
+     * Returns a read-only view of the colors of a tile. The view is backed by the store, so it
+     * must only be used by the thread doing the store writes (the image IO worker).
+     *
+     * @param mapID The Minecraft map ID.
+     * @return the tile colors, or {@code null} if the tile is not stored.
+     */
+    public static synchronized ByteBuffer getTile(int mapID) {
+        final Integer slot = slots.get(mapID);
+        if (slot == null) {
+            return null;
+        }
+        return slotBuffer(slot).asReadOnlyBuffer();
+    }
+
+    /**
+     * Stores (or replaces) the colors of a tile.
+     *
+     * @param mapID  The Minecraft map ID.
+     * @param colors The tile colors, {@link MapColorArena#TILE_SIZE} bytes.
+     * @throws IOException if the store is closed or could not be written.
+     */
+    public static synchronized void write(int mapID, byte[] colors) throws IOException {
+        if (colors.length != MapColorArena.TILE_SIZE) {
+            throw new IllegalArgumentException("Invalid tile size: " + colors.length);
+        }
+        checkOpen();
+
+        Integer slot = slots.get(mapID);
+        if (slot == null) {
+            slot = freeSlots.isEmpty() ? slotCount++ : freeSlots.pollFirst();
+            if (slot / SLOTS_PER_REGION >= regions.size()) {
+                mapRegion(regions.size());
+            }
+
+            // The colors reach the disk before the index entry, so a crash never leaves an
+            // entry pointing to a slot with the colors of another tile.
+            slotBuffer(slot).put(colors);
+            forceSlot(slot);
+            appendIndex(mapID, slot);
+            slots.put(mapID, slot);
+        } else {
+            slotBuffer(slot).put(colors);
+        }
+
+        hashes.put(mapID, hash(ByteBuffer.wrap(colors)));
+    }
+
+    /**
+     * Checks if a stored tile has the given colors. The hashes are compared first, so a
+     * changed tile is usually detected without reading the stored colors.
+     *
+     * @param mapID  The Minecraft map ID.
+     * @param colors The colors to compare.
+     * @return true if the tile is stored with exactly these colors.
+     */
+    public static synchronized boolean hasColors(int mapID, byte[] colors) {
+        final Integer slot = slots.get(mapID);
+        if (slot == null) {
+            return false;
+        }
+
+        Long storedHash = hashes.get(mapID);
+        if (storedHash == null) {
+            storedHash = hash(slotBuffer(slot));
+            hashes.put(mapID, storedHash);
+        }
+
+        final ByteBuffer newColors = ByteBuffer.wrap(colors);
+        return storedHash == hash(newColors) && slotBuffer(slot).equals(newColors);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the remaining bytes of a buffer.
+     */
+    private static long hash(ByteBuffer buffer) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            hash ^= buffer.get(i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Deletes a tile. Its slot goes to the free list.
+     *
+     * @param mapID The Minecraft map ID.
+     * @throws IOException if the store is closed or could not be written.
+     */
+    public static synchronized void delete(int mapID) throws IOException {
+        checkOpen();
+
+        final Integer slot = slots.remove(mapID);
+        hashes.remove(mapID);
+        if (slot != null) {
+            freeSlots.add(slot);
+            appendIndex(mapID, DELETED_SLOT);
+        }
+    }
+
+    /**
+     * Moves the last tiles into the free slots, and shrinks the data file accordingly.
+     *
+     * @return the number of bytes reclaimed.
+     * @throws IOException if the store is closed or could not be rewritten.
+     */
+    public static synchronized long compact() throws IOException {
+        checkOpen();
+
+        final long sizeBefore = dataChannel.size();
+        final int liveCount = slots.size();
+
+        // There are exactly as many free slots under liveCount as used slots above it.
+        for (Map.Entry<Integer, Integer> entry : slots.entrySet()) {
+            if (entry.getValue() >= liveCount) {
+                final int target = freeSlots.pollFirst();
+                slotBuffer(target).put(slotBuffer(entry.getValue()));
+                entry.setValue(target);
+            }
+        }
+
+        slotCount = liveCount;
+        freeSlots.clear();
+
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+        writeIndexSnapshot();
+
+        final int regionsCount = (slotCount + SLOTS_PER_REGION - 1) / SLOTS_PER_REGION;
+        while (regions.size() > regionsCount) {
+            regions.remove(regions.size() - 1);
+        }
+
+        try {
+            dataChannel.truncate(regionsCount * REGION_SIZE);
+        } catch (IOException ex) {
+            // Some systems cannot truncate a mapped file; it will be truncated on next startup.
+            PluginLogger.warning("Could not shrink the tile store file: {0}",
+                    ex.getMessage());
+            return 0;
+        }
+
+        return sizeBefore - dataChannel.size();
+    }
+
+    /**
+     * @return the number of stored tiles.
+     */
+    public static synchronized int getTileCount() {
+        return slots.size();
+    }
+
+    /**
+     * @return the number of free slots, waiting to be reused or compacted.
+     */
+    public static synchronized int getFreeSlotCount() {
+        return freeSlots.size();
+    }
+
+    /**
+     * @return the size of the data file, in bytes.
+     */
+    public static synchronized long getFileSize() {
+        return dataFile != null ? dataFile.length() : 0;
+    }
+
+    private static void checkOpen() throws IOException {
+        if (dataChannel == null) {
+            throw new IOException("The tile store is not open.");
+        }
+    }
+
+    private static void mapRegion(int region) throws IOException {
+        regions.add(dataChannel.map(FileChannel.MapMode.READ_WRITE, region * REGION_SIZE, REGION_SIZE));
+    }
+
+    private static ByteBuffer slotBuffer(int slot) {
+        final ByteBuffer buffer = regions.get(slot / SLOTS_PER_REGION).duplicate();
+        final int position = (slot % SLOTS_PER_REGION) * MapColorArena.TILE_SIZE;
+        buffer.position(position);
+        buffer.limit(position + MapColorArena.TILE_SIZE);
+        return buffer.slice();
+    }
+
+    private static void forceSlot(int slot) {
+        regions.get(slot / SLOTS_PER_REGION)
+                .force((slot % SLOTS_PER_REGION) * MapColorArena.TILE_SIZE, MapColorArena.TILE_SIZE);
+    }
+
+    private static void readIndex() throws IOException {
+        slots.clear();
+        freeSlots.clear();
+
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (input.readInt() != INDEX_MAGIC) {
+                throw new IOException("Invalid tile store index file: " + indexFile.getName());
+            }
+            final int version = input.readInt();
+            if (version > INDEX_VERSION) {
+                throw new IOException("Unsupported tile store index version: " + version);
+            }
+
+            while (true) {
+                final int mapID = input.readInt();
+                final int slot = input.readInt();
+                if (slot == DELETED_SLOT) {
+                    slots.remove(mapID);
+                } else {
+                    slots.put(mapID, slot);
+                }
+            }
+        } catch (EOFException ignored) {
+            // End of the journal. A truncated last record (interrupted write) is ignored.
+        }
+    }
+
+    private static void writeIndexSnapshot() throws IOException {
+        if (indexOutput != null) {
+            indexOutput.close();
+        }
+
+        final File tempFile = new File(indexFile.getParentFile(), INDEX_FILE_NAME + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(INDEX_VERSION);
+            for (Map.Entry<Integer, Integer> entry : slots.entrySet()) {
+                output.writeInt(entry.getKey());
+                output.writeInt(entry.getValue());
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        indexOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+    }
+
+    private static void appendIndex(int mapID, int slot) throws IOException {
+        indexOutput.writeInt(mapID);
+        indexOutput.writeInt(slot);
+        indexOutput.flush();
+    }
+}
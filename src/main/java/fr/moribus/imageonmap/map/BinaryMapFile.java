@@ -0,0 +1,381 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import fr.moribus.imageonmap.image.ImageUtils.ScalingType;
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Binary storage of the maps of a player.
+ *
+ * <p>The maps are stored in a snapshot file ({@code <uuid>.iom}), and every change made since
+ * this snapshot is appended to a delta log ({@code <uuid>.iom.log}). The log is merged into a
+ * new snapshot once it holds {@link #COMPACTION_THRESHOLD} deltas.</p>
+ *
+ * <p>Both files start with a magic number, the format version, and the generation of the
+ * snapshot. A log is only replayed over the snapshot of the same generation, so a log that
+ * was already merged (if the server stopped during a compaction) is ignored. For this reason,
+ * nothing is appended to a log that cannot be replayed: the changes wait for the next
+ * snapshot instead.</p>
+ */
+class BinaryMapFile {
+    static final String FILE_EXTENSION = "iom";
+
+    private static final int SNAPSHOT_MAGIC = 0x494F4D53;
+    private static final int LOG_MAGIC = 0x494F4D4C;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The number of deltas after which the log is merged into a new snapshot.
+     */
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    private static final byte DELTA_ADD = 1;
+    private static final byte DELTA_DELETE = 2;
+    private static final byte DELTA_RENAME = 3;
+    private static final byte DELTA_UPDATE = 4;
+
+    private final UUID playerUUID;
+    private final File snapshotFile;
+    private final File logFile;
+    private long generation = 0;
+    private int deltaCount = 0;
+
+    /**
+     * True once the snapshot was read or written, so {@link #generation} is the one on disk.
+     */
+    private boolean hasSnapshot = false;
+
+    /**
+     * True if the files must be replaced by a new snapshot: the log could not be entirely read
+     * or written, or was left by an older snapshot.
+     */
+    private boolean snapshotRequired = false;
+
+    BinaryMapFile(File directory, UUID playerUUID) {
+        this.playerUUID = playerUUID;
+        this.snapshotFile = new File(directory, playerUUID.toString() + "." + FILE_EXTENSION);
+        this.logFile = new File(directory, playerUUID.toString() + "." + FILE_EXTENSION + ".log");
+    }
+
+    boolean exists() {
+        return snapshotFile.exists();
+    }
+
+    synchronized boolean needsCompaction() {
+        return snapshotRequired || deltaCount >= COMPACTION_THRESHOLD;
+    }
+
+    /**
+     * Reads the snapshot, and replays the delta log over it.
+     *
+     * @return the maps of the player.
+     * @throws IOException if the snapshot could not be read.
+     */
+    synchronized List<ImageMap> read() throws IOException {
+        final List<ImageMap> maps = new ArrayList<>();
+
+        deltaCount = 0;
+        snapshotRequired = false;
+
+        try (DataInputStream input = openInput(snapshotFile)) {
+            readHeader(input, SNAPSHOT_MAGIC);
+            generation = input.readLong();
+            for (int i = 0, c = input.readInt(); i < c; i++) {
+                maps.add(readMap(input));
+            }
+        }
+        hasSnapshot = true;
+
+        if (logFile.exists()) {
+            try (DataInputStream input = openInput(logFile)) {
+                readHeader(input, LOG_MAGIC);
+                if (input.readLong() == generation) {
+                    replayLog(input, maps);
+                } else {
+                    snapshotRequired = true;
+                }
+            } catch (EOFException ex) {
+                // The server stopped while a delta was written; every complete delta was replayed.
+                snapshotRequired = true;
+            } catch (IOException ex) {
+                PluginLogger.error("Could not read the maps log of player '{0}'", ex, playerUUID.toString());
+                snapshotRequired = true;
+            }
+        }
+
+        return maps;
+    }
+
+    /**
+     * Writes a new snapshot, and drops the delta log.
+     *
+     * @param maps The maps of the player.
+     * @throws IOException if the snapshot could not be written.
+     */
+    synchronized void writeSnapshot(List<ImageMap> maps) throws IOException {
+        final File tempFile = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(generation + 1);
+            output.writeInt(maps.size());
+            for (ImageMap map : maps) {
+                writeMap(output, map);
+            }
+        }
+
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        generation++;
+        hasSnapshot = true;
+
+        Files.deleteIfExists(logFile.toPath());
+        deltaCount = 0;
+        snapshotRequired = false;
+    }
+
+    synchronized void appendAdd(ImageMap map) {
+        append(output -> {
+            output.writeByte(DELTA_ADD);
+            writeMap(output, map);
+        });
+    }
+
+    synchronized void appendDelete(String mapId) {
+        append(output -> {
+            output.writeByte(DELTA_DELETE);
+            output.writeUTF(mapId);
+        });
+    }
+
+    synchronized void appendUpdate(ImageMap map) {
+        append(output -> {
+            output.writeByte(DELTA_UPDATE);
+            writeMap(output, map);
+        });
+    }
+
+    synchronized void appendRename(String oldMapId, String newMapId, String newName) {
+        append(output -> {
+            output.writeByte(DELTA_RENAME);
+            output.writeUTF(oldMapId);
+            output.writeUTF(newMapId);
+            output.writeUTF(newName);
+        });
+    }
+
+    /**
+     * Appends a delta to the log. While a new snapshot is required, the log would not be
+     * replayed entirely, so it is left untouched: the change is written with the snapshot, on
+     * the next save.
+     */
+    private void append(Delta delta) {
+        if (!hasSnapshot) {
+            snapshotRequired = true;
+        }
+        if (snapshotRequired) {
+            return;
+        }
+
+        try (DataOutputStream output = openLog()) {
+            delta.write(output);
+        } catch (IOException ex) {
+            onLogError(ex);
+        }
+        deltaCount++;
+    }
+
+    private void replayLog(DataInputStream input, List<ImageMap> maps) throws IOException {
+        while (true) {
+            final int delta = input.read();
+            if (delta == -1) {
+                return;
+            }
+
+            final ImageMap map;
+            switch (delta) {
+                case DELTA_ADD:
+                    maps.add(readMap(input));
+                    break;
+                case DELTA_UPDATE:
+                    final ImageMap updatedMap = readMap(input);
+                    map = findMap(maps, updatedMap.getId());
+                    if (map != null) {
+                        maps.set(maps.indexOf(map), updatedMap);
+                    }
+                    break;
+                case DELTA_DELETE:
+                    map = findMap(maps, input.readUTF());
+                    if (map != null) {
+                        maps.remove(map);
+                    }
+                    break;
+                case DELTA_RENAME:
+                    map = findMap(maps, input.readUTF());
+                    final String newMapId = input.readUTF();
+                    final String newName = input.readUTF();
+                    if (map != null) {
+                        map.rename(newMapId, newName);
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown delta type: " + delta);
+            }
+            deltaCount++;
+        }
+    }
+
+    private ImageMap findMap(List<ImageMap> maps, String mapId) {
+        for (ImageMap map : maps) {
+            if (map.getId().equals(mapId)) {
+                return map;
+            }
+        }
+        return null;
+    }
+
+    private ImageMap readMap(DataInputStream input) throws IOException {
+        final int type = input.readUnsignedByte();
+        final String id = input.readUTF();
+        final String name = input.readUTF();
+
+        final ImageMap map;
+        if (type == ImageMap.Type.SINGLE.ordinal()) {
+            map = new SingleMap(playerUUID, input.readInt(), id, name);
+        } else if (type == ImageMap.Type.POSTER.ordinal()) {
+            final int columns = input.readInt();
+            final int rows = input.readInt();
+            final int[] mapsIDs = new int[input.readInt()];
+            for (int i = 0; i < mapsIDs.length; i++) {
+                mapsIDs[i] = input.readInt();
+            }
+            map = new PosterMap(playerUUID, mapsIDs, id, name, columns, rows);
+        } else {
+            throw new IOException("Unknown map type: " + type);
+        }
+
+        if (input.readBoolean()) {
+            final String sourceURL = input.readUTF();
+            final int refreshInterval = input.readInt();
+            final int scaling = input.readUnsignedByte();
+            if (scaling >= ScalingType.values().length) {
+                throw new IOException("Unknown scaling type: " + scaling);
+            }
+            map.setSource(sourceURL, refreshInterval, ScalingType.values()[scaling]);
+        }
+        return map;
+    }
+
+    private void writeMap(DataOutputStream output, ImageMap map) throws IOException {
+        output.writeByte(map.getType().ordinal());
+        output.writeUTF(map.getId());
+        output.writeUTF(map.getName() != null ? map.getName() : map.getId());
+
+        if (map instanceof PosterMap) {
+            final PosterMap poster = (PosterMap) map;
+            output.writeInt(poster.getColumnCount());
+            output.writeInt(poster.getRowCount());
+            output.writeInt(poster.getMapsIDs().length);
+            for (int mapID : poster.getMapsIDs()) {
+                output.writeInt(mapID);
+            }
+        } else {
+            output.writeInt(map.getMapsIDs()[0]);
+        }
+
+        final String sourceURL = map.getSourceURL();
+        output.writeBoolean(sourceURL != null);
+        if (sourceURL != null) {
+            output.writeUTF(sourceURL);
+            output.writeInt(map.getRefreshInterval());
+            output.writeByte(map.getRefreshScaling().ordinal());
+        }
+    }
+
+    private DataInputStream openInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        final boolean newLog = !logFile.exists();
+        final DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(logFile, true)));
+
+        if (newLog) {
+            output.writeInt(LOG_MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(generation);
+        }
+        return output;
+    }
+
+    private void readHeader(DataInputStream input, int magic) throws IOException {
+        if (input.readInt() != magic) {
+            throw new IOException("Invalid maps file for player " + playerUUID);
+        }
+        final int version = input.readInt();
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Unsupported maps file version " + version + " for player " + playerUUID);
+        }
+    }
+
+    private void onLogError(IOException ex) {
+        PluginLogger.error("Could not save maps file for player '{0}'", ex, playerUUID.toString());
+        snapshotRequired = true;
+    }
+
+    private interface Delta {
+        void write(DataOutputStream output) throws IOException;
+    }
+}
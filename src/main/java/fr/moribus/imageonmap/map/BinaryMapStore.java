@@ -0,0 +1,136 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the maps of each player in a {@link BinaryMapFile}: a snapshot and a log of the changes
+ * made since, merged into a new snapshot once it is long enough.
+ */
+class BinaryMapStore implements MapStore {
+    private final File directory;
+    private final Map<UUID, BinaryMapFile> files = new ConcurrentHashMap<>();
+
+    BinaryMapStore(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Set<UUID> getOwners() {
+        final Set<UUID> owners = MapManager.getPlayersWithFile(directory, BinaryMapFile.FILE_EXTENSION);
+        owners.addAll(MapManager.getPlayersWithFile(directory, YamlMapStore.FILE_EXTENSION));
+        return owners;
+    }
+
+    @Override
+    public List<ImageMap> load(UUID playerUUID) throws IOException {
+        final BinaryMapFile file = new BinaryMapFile(directory, playerUUID);
+        files.put(playerUUID, file);
+
+        if (!file.exists()) {
+            // Imports the YAML file, if any, into a first snapshot.
+            final List<ImageMap> maps = YamlMapStore.readFile(directory, playerUUID);
+            if (maps == null) {
+                return new ArrayList<>();
+            }
+            file.writeSnapshot(maps);
+            PluginLogger.info("Imported YAML maps file of player {0}", playerUUID.toString());
+            return maps;
+        }
+
+        final List<ImageMap> maps = file.read();
+        if (file.needsCompaction()) {
+            file.writeSnapshot(maps);
+        }
+        return maps;
+    }
+
+    @Override
+    public void mapAdded(ImageMap map) {
+        getFile(map.getUserUUID()).appendAdd(map);
+    }
+
+    @Override
+    public void mapDeleted(ImageMap map) {
+        getFile(map.getUserUUID()).appendDelete(map.getId());
+    }
+
+    @Override
+    public void mapRenamed(ImageMap map, String oldId) {
+        getFile(map.getUserUUID()).appendRename(oldId, map.getId(), map.getName());
+    }
+
+    @Override
+    public void mapUpdated(ImageMap map) {
+        getFile(map.getUserUUID()).appendUpdate(map);
+    }
+
+    /**
+     * Every change is already in the delta log: the log is only merged into a new snapshot
+     * once it is long enough.
+     */
+    @Override
+    public void save(PlayerMapStore store) throws IOException {
+        final BinaryMapFile file = getFile(store.getUUID());
+        if (file.needsCompaction()) {
+            file.writeSnapshot(store.getMapList());
+        }
+    }
+
+    @Override
+    public UUID findOwner(int mapID) {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        files.clear();
+    }
+
+    private BinaryMapFile getFile(UUID playerUUID) {
+        return files.computeIfAbsent(playerUUID, uuid -> new BinaryMapFile(directory, uuid));
+    }
+}
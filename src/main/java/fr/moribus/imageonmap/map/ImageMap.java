@@ -36,16 +36,13 @@
 
 package fr.moribus.imageonmap.map;
 
-import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.image.ImageUtils.ScalingType;
 import fr.moribus.imageonmap.ui.MapItemManager;
 import fr.zcraft.quartzlib.components.i18n.I;
-import java.io.File;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import org.bukkit.Material;
-import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.bukkit.entity.Player;
@@ -60,6 +57,9 @@ public abstract class ImageMap implements ConfigurationSerializable {
     private final Type mapType;
     private String id;
     private String name;
+    private String sourceURL = null;
+    private int refreshInterval = 0;
+    private ScalingType refreshScaling = ScalingType.CONTAINED;
 
     protected ImageMap(UUID userUUID, Type mapType) {
         this(userUUID, mapType, null, null);
@@ -84,10 +84,17 @@ public abstract class ImageMap implements ConfigurationSerializable {
                 getNullableFieldValue(map, "id"),
                 getNullableFieldValue(map, "name"));
 
-    }
-
-    public static File getFullImageFile(int mapIDstart, int mapIDend) {
-        return new File(ImageOnMap.getPlugin().getImagesDirectory(), "_" + mapIDstart + "-" + mapIDend + ".png");
+        final String source = getNullableFieldValue(map, "sourceURL");
+        if (source != null) {
+            final Integer interval = getNullableFieldValue(map, "refreshInterval");
+            final String scaling = getNullableFieldValue(map, "scaling");
+            try {
+                setSource(source, interval != null ? interval : 0,
+                        scaling != null ? ScalingType.valueOf(scaling) : ScalingType.CONTAINED);
+            } catch (IllegalArgumentException ex) {
+                throw new InvalidConfigurationException("Invalid field \"scaling\"", ex);
+            }
+        }
     }
 
     public static ImageMap fromConfig(Map<String, Object> map, UUID userUUID) throws InvalidConfigurationException {
@@ -108,25 +115,23 @@ public abstract class ImageMap implements ConfigurationSerializable {
         }
     }
 
+    /**
+     * Returns the size of a map, in Minecraft maps.
+     *
+     * @param playerUUID The UUID of the owner of the map.
+     * @param id         The identifier of the map.
+     * @return the number of columns and rows of the map, or null if it does not exist.
+     */
     public static Integer[] getSize(UUID playerUUID, String id) {
-
-        ConfigurationSection section =
-                MapManager.getPlayerMapStore(playerUUID).getToolConfig().getConfigurationSection("PlayerMapStore");
-
-        if (section == null) {
-            return null;
-        }
-        List<Map<String, Object>> list = (List<Map<String, Object>>) section.getList("mapList");
-        if (list == null) {
+        final ImageMap map = MapManager.getMap(playerUUID, id);
+        if (map == null) {
             return null;
         }
-
-        for (Map<String, Object> tmpMap : list) {
-            if (tmpMap.get("id").equals(id)) {
-                return new Integer[] {(Integer) tmpMap.get("columns"), (Integer) tmpMap.get("rows")};
-            }
+        if (map instanceof PosterMap) {
+            final PosterMap poster = (PosterMap) map;
+            return new Integer[] {poster.getColumnCount(), poster.getRowCount()};
         }
-        return null;
+        return new Integer[] {1, 1};
     }
 
     protected static <T> T getFieldValue(Map<String, Object> map, String fieldName)
@@ -180,6 +185,13 @@ public abstract class ImageMap implements ConfigurationSerializable {
         map.put("id", getId());
         map.put("type", mapType.toString());
         map.put("name", getName());
+        synchronized (this) {
+            if (sourceURL != null) {
+                map.put("sourceURL", sourceURL);
+                map.put("refreshInterval", refreshInterval);
+                map.put("scaling", refreshScaling.name());
+            }
+        }
         this.postSerialize(map);
         return map;
     }
@@ -212,7 +224,39 @@ public abstract class ImageMap implements ConfigurationSerializable {
         if (getName().equals(name)) {
             return;
         }
-        rename(MapManager.getNextAvailableMapID(name, getUserUUID()), name);
+        MapManager.renameMap(this, name);
+    }
+
+    /**
+     * @return the URL this map is refreshed from, or null if it is not refreshed.
+     */
+    public synchronized String getSourceURL() {
+        return sourceURL;
+    }
+
+    /**
+     * @return the delay between two refreshes of this map, in seconds.
+     */
+    public synchronized int getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    public synchronized ScalingType getRefreshScaling() {
+        return refreshScaling;
+    }
+
+    /**
+     * Sets the URL this map is refreshed from. Use {@link MapManager#setMapSource} to also
+     * persist it and schedule the refreshes.
+     *
+     * @param sourceURL       The URL of the image, or null to stop refreshing the map.
+     * @param refreshInterval The delay between two refreshes, in seconds.
+     * @param scaling         How the image is resized to the map.
+     */
+    synchronized void setSource(String sourceURL, int refreshInterval, ScalingType scaling) {
+        this.sourceURL = sourceURL;
+        this.refreshInterval = sourceURL != null ? refreshInterval : 0;
+        this.refreshScaling = scaling;
     }
 
     public enum Type {
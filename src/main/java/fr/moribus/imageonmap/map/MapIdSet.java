@@ -0,0 +1,150 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import java.util.Arrays;
+
+/**
+ * A set of Minecraft map IDs, stored in an open-addressing table of primitive ints, so looking
+ * up the maps of a whole inventory costs no allocation.
+ *
+ * <p>Not thread-safe: {@link MapManager} synchronizes the accesses.</p>
+ */
+final class MapIdSet {
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int MIN_CAPACITY = 64;
+
+    private int[] table = newTable(MIN_CAPACITY);
+    private int size = 0;
+
+    private static int[] newTable(int capacity) {
+        final int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int hash(int mapID) {
+        // Spreads the consecutive IDs of the posters across the table.
+        final int hash = mapID * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    public boolean contains(int mapID) {
+        final int mask = table.length - 1;
+        for (int i = hash(mapID) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == mapID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean add(int mapID) {
+        if (mapID == EMPTY) {
+            throw new IllegalArgumentException("Invalid map ID: " + mapID);
+        }
+        if ((size + 1) * 4 > table.length * 3) {
+            resize(table.length * 2);
+        }
+
+        final int mask = table.length - 1;
+        int i = hash(mapID) & mask;
+        for (; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == mapID) {
+                return false;
+            }
+        }
+        table[i] = mapID;
+        size++;
+        return true;
+    }
+
+    public boolean remove(int mapID) {
+        final int mask = table.length - 1;
+        int i = hash(mapID) & mask;
+        while (table[i] != mapID) {
+            if (table[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // Moves back the following entries of the probe sequence, so no tombstone is needed.
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            final int home = hash(table[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int[] toArray() {
+        final int[] mapIDs = new int[size];
+        int i = 0;
+        for (int mapID : table) {
+            if (mapID != EMPTY) {
+                mapIDs[i++] = mapID;
+            }
+        }
+        return mapIDs;
+    }
+
+    public void clear() {
+        table = newTable(MIN_CAPACITY);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        final int[] oldTable = table;
+        table = newTable(capacity);
+        size = 0;
+        for (int mapID : oldTable) {
+            if (mapID != EMPTY) {
+                add(mapID);
+            }
+        }
+    }
+}
@@ -39,13 +39,24 @@ package fr.moribus.imageonmap.map;
 import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.image.ImageIOExecutor;
+import fr.moribus.imageonmap.image.ImageUtils.ScalingType;
 import fr.moribus.imageonmap.image.PosterImage;
+import fr.moribus.imageonmap.image.StorageReconciler;
 import fr.moribus.imageonmap.map.MapManagerException.Reason;
+import fr.moribus.imageonmap.ui.MapItemTemplates;
 import fr.zcraft.quartzlib.tools.PluginLogger;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.inventory.Inventory;
@@ -56,30 +67,78 @@ import org.bukkit.scheduler.BukkitTask;
 
 public abstract class MapManager {
     private static final long SAVE_DELAY = 200;
-    private static final ArrayList<PlayerMapStore> playerMaps = new ArrayList<PlayerMapStore>();
+    private static final Map<UUID, PlayerMapStore> playerMaps = new HashMap<>();
     private static BukkitTask autosaveTask;
+    private static MapStore store;
+
+    /**
+     * Counters kept up to date by the player stores, so quota checks and statistics
+     * do not have to walk every store.
+     */
+    private static final AtomicInteger mapCount = new AtomicInteger();
+    private static final AtomicInteger imagesCount = new AtomicInteger();
+    private static final AtomicInteger reservedMapCount = new AtomicInteger();
+    /**
+     * The Minecraft map IDs of all the loaded images, to tell in constant time whether a map is managed by
+     * ImageOnMap without walking through every player store.
+     */
+    private static final MapIdSet managedMapIDs = new MapIdSet();
+    private static final int NO_MAP = -1;
 
     public static void init() {
+        store = createStore(PluginConfiguration.STORAGE_FORMAT.get());
         load();
     }
 
     public static void exit() {
         save();
-        playerMaps.clear();
-        if (autosaveTask != null) {
-            autosaveTask.cancel();
+        synchronized (playerMaps) {
+            playerMaps.clear();
+            mapCount.set(0);
+            imagesCount.set(0);
+            reservedMapCount.set(0);
+        }
+        synchronized (managedMapIDs) {
+            managedMapIDs.clear();
+        }
+        MapSearchIndex.clear();
+        store.close();
+        synchronized (MapManager.class) {
+            if (autosaveTask != null) {
+                autosaveTask.cancel();
+                autosaveTask = null;
+            }
         }
     }
 
-    public static boolean managesMap(int mapID) {
-        synchronized (playerMaps) {
-            for (PlayerMapStore mapStore : playerMaps) {
-                if (mapStore.managesMap(mapID)) {
-                    return true;
+    private static MapStore createStore(MapStore.StorageFormat format) {
+        final File directory = ImageOnMap.getPlugin().getMapsDirectory();
+        switch (format) {
+            case BINARY:
+                return new BinaryMapStore(directory);
+            case SQLITE:
+                try {
+                    return new SqliteMapStore(directory);
+                } catch (SQLException ex) {
+                    PluginLogger.error("Could not open the maps database, falling back to YAML storage", ex);
+                    return new YamlMapStore(directory);
                 }
-            }
+            default:
+                return new YamlMapStore(directory);
+        }
+    }
+
+    /**
+     * @return the storage backend of the maps.
+     */
+    public static MapStore getStore() {
+        return store;
+    }
+
+    public static boolean managesMap(int mapID) {
+        synchronized (managedMapIDs) {
+            return managedMapIDs.contains(mapID);
         }
-        return false;
     }
 
     public static boolean managesMap(ItemStack item) {
@@ -90,23 +149,120 @@ public abstract class MapManager {
             return false;
         }
 
-        synchronized (playerMaps) {
-            for (PlayerMapStore mapStore : playerMaps) {
-                if (mapStore.managesMap(item)) {
-                    return true;
+        return managesMap(getMapIdFromItemStack(item));
+    }
+
+    /**
+     * Adds the Minecraft maps of an image to the index of the maps managed by ImageOnMap.
+     *
+     * @param mapsIDs The Minecraft map IDs.
+     */
+    static void indexMapsIDs(int[] mapsIDs) {
+        synchronized (managedMapIDs) {
+            for (int mapID : mapsIDs) {
+                managedMapIDs.add(mapID);
+            }
+        }
+    }
+
+    /**
+     * @return the Minecraft map IDs of all the loaded images, sorted.
+     */
+    public static int[] getManagedMapsIDs() {
+        final int[] mapsIDs;
+        synchronized (managedMapIDs) {
+            mapsIDs = managedMapIDs.toArray();
+        }
+        Arrays.sort(mapsIDs);
+        return mapsIDs;
+    }
+
+    static void unindexMapsIDs(int[] mapsIDs) {
+        synchronized (managedMapIDs) {
+            for (int mapID : mapsIDs) {
+                managedMapIDs.remove(mapID);
+            }
+        }
+    }
+
+    /**
+     * Finds the ImageOnMap maps in an inventory, with a single pass over its contents.
+     *
+     * @param inventory The inventory.
+     * @return the slots holding an ImageOnMap map, in increasing order.
+     */
+    public static int[] getMapSlots(Inventory inventory) {
+        final int[] mapIDs = getMapIDs(inventory.getContents());
+        final int[] slots = new int[mapIDs.length];
+        int count = 0;
+
+        synchronized (managedMapIDs) {
+            for (int slot = 0; slot < mapIDs.length; slot++) {
+                if (mapIDs[slot] != NO_MAP && managedMapIDs.contains(mapIDs[slot])) {
+                    slots[count++] = slot;
                 }
             }
         }
-        return false;
+        return Arrays.copyOf(slots, count);
     }
 
-    public static ImageMap createMap(UUID playerUUID, int mapID) throws MapManagerException {
+    /**
+     * Finds the maps of an image in an inventory, with a single pass over its contents.
+     *
+     * @param inventory The inventory.
+     * @param map       The image.
+     * @return the slots holding a map of this image, in increasing order.
+     */
+    public static int[] getMapSlots(Inventory inventory, ImageMap map) {
+        final int[] mapIDs = getMapIDs(inventory.getContents());
+        final int[] slots = new int[mapIDs.length];
+        int count = 0;
+
+        for (int slot = 0; slot < mapIDs.length; slot++) {
+            if (mapIDs[slot] != NO_MAP && map.managesMap(mapIDs[slot])) {
+                slots[count++] = slot;
+            }
+        }
+        return Arrays.copyOf(slots, count);
+    }
+
+    /**
+     * Reads the map ID of each item.
+     *
+     * @param items The items.
+     * @return the map ID of each item, or {@link #NO_MAP} for the items that are not maps.
+     */
+    private static int[] getMapIDs(ItemStack[] items) {
+        final int[] mapIDs = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            final ItemStack item = items[i];
+            mapIDs[i] = NO_MAP;
+            if (item != null && item.getType() == Material.FILLED_MAP) {
+                final ItemMeta meta = item.getItemMeta();
+                if (meta instanceof MapMeta && ((MapMeta) meta).hasMapId()) {
+                    mapIDs[i] = ((MapMeta) meta).getMapId();
+                }
+            }
+        }
+        return mapIDs;
+    }
+
+    /**
+     * Creates and stores a new single map. The map must have been reserved with
+     * {@link #reserveMaps(int, UUID)}, so the limits are not checked again.
+     */
+    public static ImageMap createMap(UUID playerUUID, int mapID) {
         ImageMap newMap = new SingleMap(playerUUID, mapID);
-        addMap(newMap);
+        insertMap(newMap);
+        StorageReconciler.mapsUsed(newMap.getMapsIDs());
         return newMap;
     }
 
-    public static ImageMap createMap(PosterImage image, UUID playerUUID, int[] mapsIDs) throws MapManagerException {
+    /**
+     * Creates and stores a new map from a poster image. The maps must have been reserved with
+     * {@link #reserveMaps(int, UUID)}, so the limits are not checked again.
+     */
+    public static ImageMap createMap(PosterImage image, UUID playerUUID, int[] mapsIDs) {
         ImageMap newMap;
 
         if (image.getImagesCount() == 1) {
@@ -114,15 +270,22 @@ public abstract class MapManager {
         } else {
             newMap = new PosterMap(playerUUID, mapsIDs, image.getColumns(), image.getLines());
         }
-        addMap(newMap);
+        insertMap(newMap);
+        StorageReconciler.mapsUsed(mapsIDs);
         return newMap;
     }
 
+    /**
+     * Gets Minecraft maps for a new image, reusing the reclaimed map IDs first. This must be called
+     * from the main thread.
+     */
     public static int[] getNewMapsIds(int amount) {
         int[] mapsIds = new int[amount];
         for (int i = 0; i < amount; i++) {
-            mapsIds[i] = Bukkit.createMap(Bukkit.getWorlds().get(0)).getId();
+            final int freeMapID = StorageReconciler.pollFreeMapID();
+            mapsIds[i] = freeMapID != -1 ? freeMapID : Bukkit.createMap(Bukkit.getWorlds().get(0)).getId();
         }
+        StorageReconciler.mapsAllocated(mapsIds);
         return mapsIds;
     }
 
@@ -149,15 +312,39 @@ public abstract class MapManager {
         getPlayerMapStore(map.getUserUUID()).insertMap(map);
     }
 
+    /**
+     * Inserts several maps of the same player at once.
+     *
+     * @param playerUUID The owner of the maps.
+     * @param maps       The maps to insert.
+     */
+    public static void insertMaps(UUID playerUUID, Collection<? extends ImageMap> maps) {
+        getPlayerMapStore(playerUUID).insertMaps(maps);
+    }
+
     public static void deleteMap(ImageMap map) throws MapManagerException {
         getPlayerMapStore(map.getUserUUID()).deleteMap(map);
+        MapItemTemplates.invalidate(map);
         ImageIOExecutor.deleteImage(map);
     }
 
+    public static void renameMap(ImageMap map, String name) {
+        getPlayerMapStore(map.getUserUUID()).renameMap(map, name);
+        MapItemTemplates.invalidate(map);
+    }
+
+    public static void setMapSource(ImageMap map, String sourceURL, int refreshInterval, ScalingType scaling) {
+        getPlayerMapStore(map.getUserUUID()).setMapSource(map, sourceURL, refreshInterval, scaling);
+    }
+
     public static void notifyModification(UUID playerUUID) {
         getPlayerMapStore(playerUUID).notifyModification();
+    }
+
+    static synchronized void scheduleAutosave() {
         if (autosaveTask == null) {
-            Bukkit.getScheduler().runTaskLater(ImageOnMap.getPlugin(), new AutosaveRunnable(), SAVE_DELAY);
+            autosaveTask = Bukkit.getScheduler().runTaskLater(ImageOnMap.getPlugin(), new AutosaveRunnable(),
+                    SAVE_DELAY);
         }
     }
 
@@ -169,10 +356,33 @@ public abstract class MapManager {
         return getPlayerMapStore(playerUUID).getMapList();
     }
 
+    public static List<String> getMapIdsStartingWith(UUID playerUUID, String prefix, int limit) {
+        return getPlayerMapStore(playerUUID).getMapIdsStartingWith(prefix, limit);
+    }
+
     public static ImageMap[] getMaps(UUID playerUUID) {
         return getPlayerMapStore(playerUUID).getMaps();
     }
 
+    /**
+     * Returns the maps of a player, sorted, without copying them when they did not change.
+     *
+     * @param playerUUID The player's UUID.
+     * @param order      The order of the maps.
+     * @return the maps. This array is shared and must not be modified.
+     */
+    public static ImageMap[] getSortedMaps(UUID playerUUID, PlayerMapStore.SortOrder order) {
+        return getPlayerMapStore(playerUUID).getSortedMaps(order);
+    }
+
+    /**
+     * @param playerUUID The player's UUID.
+     * @return a number changed each time the maps of this player are added, removed or renamed.
+     */
+    public static long getMapsVersion(UUID playerUUID) {
+        return getPlayerMapStore(playerUUID).getVersion();
+    }
+
     /**
      * Returns the number of minecraft maps used by the images rendered by the given player.
      *
@@ -194,8 +404,21 @@ public abstract class MapManager {
      * @return The {@link ImageMap}.
      */
     public static ImageMap getMap(int mapId) {
+        if (!managesMap(mapId)) {
+            return null;
+        }
+
+        final UUID owner = store.findOwner(mapId);
+        if (owner != null) {
+            for (ImageMap map : getPlayerMapStore(owner).getMapList()) {
+                if (map.managesMap(mapId)) {
+                    return map;
+                }
+            }
+        }
+
         synchronized (playerMaps) {
-            for (PlayerMapStore mapStore : playerMaps) {
+            for (PlayerMapStore mapStore : playerMaps.values()) {
                 if (mapStore.managesMap(mapId)) {
                     for (ImageMap map : mapStore.getMapList()) {
                         if (map.managesMap(mapId)) {
@@ -226,38 +449,44 @@ public abstract class MapManager {
     }
 
     public static void clear(Inventory inventory) {
-        for (int i = 0, c = inventory.getSize(); i < c; i++) {
-            if (managesMap(inventory.getItem(i))) {
-                inventory.setItem(i, new ItemStack(Material.AIR));
-            }
+        for (int slot : getMapSlots(inventory)) {
+            inventory.setItem(slot, new ItemStack(Material.AIR));
         }
     }
 
     public static void clear(Inventory inventory, ImageMap map) {
-        for (int i = 0, c = inventory.getSize(); i < c; i++) {
-            if (map.managesMap(inventory.getItem(i))) {
-                inventory.setItem(i, new ItemStack(Material.AIR));
-            }
+        for (int slot : getMapSlots(inventory, map)) {
+            inventory.setItem(slot, new ItemStack(Material.AIR));
         }
     }
 
-    private static UUID getUUIDFromFile(File file) {
-        String fileName = file.getName();
-        int fileExtPos = fileName.lastIndexOf('.');
-        if (fileExtPos <= 0) {
-            return null;
+    /**
+     * Lists the players having a file with the given extension in the maps directory.
+     *
+     * @param directory The maps directory.
+     * @param extension The extension of the files, without the dot.
+     * @return the UUIDs of these players.
+     */
+    static Set<UUID> getPlayersWithFile(File directory, String extension) {
+        final Set<UUID> players = new HashSet<>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return players;
         }
 
-        String fileExt = fileName.substring(fileExtPos + 1);
-        if (!fileExt.equals("yml")) {
-            return null;
-        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.endsWith("." + extension)) {
+                continue;
+            }
 
-        try {
-            return UUID.fromString(fileName.substring(0, fileExtPos));
-        } catch (IllegalArgumentException ex) {
-            return null;
+            try {
+                players.add(UUID.fromString(fileName.substring(0, fileName.length() - extension.length() - 1)));
+            } catch (IllegalArgumentException ex) {
+                // Not a player file.
+            }
         }
+        return players;
     }
 
     //Silent load
@@ -267,24 +496,26 @@ public abstract class MapManager {
 
     //Loading
     public static void load(boolean verbose) {
-        int loadedFilesCount = 0;
-        for (File file : ImageOnMap.getPlugin().getMapsDirectory().listFiles()) {
-            UUID uuid = getUUIDFromFile(file);
-            if (uuid == null) {
-                continue;
-            }
+        final Set<UUID> owners;
+        try {
+            owners = store.getOwners();
+        } catch (IOException ex) {
+            PluginLogger.error("Could not list the players having maps", ex);
+            return;
+        }
+
+        for (UUID uuid : owners) {
             getPlayerMapStore(uuid);
-            ++loadedFilesCount;
         }
 
         if (verbose) {
-            PluginLogger.info("Loaded {0} player map files.", loadedFilesCount);
+            PluginLogger.info("Loaded {0} player map files.", owners.size());
         }
     }
 
     public static void save() {
         synchronized (playerMaps) {
-            for (PlayerMapStore tmpStore : playerMaps) {
+            for (PlayerMapStore tmpStore : playerMaps.values()) {
                 tmpStore.save();
             }
         }
@@ -297,26 +528,58 @@ public abstract class MapManager {
     public static void checkMapLimit(int newMapsCount, UUID userUUID) throws MapManagerException {
         int limit = PluginConfiguration.MAP_GLOBAL_LIMIT.get();
 
-        if (limit > 0 && getMapCount() + newMapsCount > limit) {
+        if (limit > 0 && mapCount.get() + reservedMapCount.get() + newMapsCount > limit) {
             throw new MapManagerException(Reason.MAXIMUM_SERVER_MAPS_EXCEEDED);
         }
 
         getPlayerMapStore(userUUID).checkMapLimit(newMapsCount);
     }
 
+    /**
+     * Reserves maps against the global and player limits before they are rendered. Unlike
+     * {@link #checkMapLimit(int, UUID)}, two concurrent renders cannot both pass the limits.
+     * The reservation must be released with {@link #releaseMaps(int, UUID)} once the maps
+     * are created, or if the render fails.
+     *
+     * @param newMapsCount The number of maps to reserve.
+     * @param userUUID     The UUID of the player rendering the maps.
+     * @throws MapManagerException if a limit would be exceeded.
+     */
+    public static void reserveMaps(int newMapsCount, UUID userUUID) throws MapManagerException {
+        int limit = PluginConfiguration.MAP_GLOBAL_LIMIT.get();
+        int reserved;
+        do {
+            reserved = reservedMapCount.get();
+            if (limit > 0 && mapCount.get() + reserved + newMapsCount > limit) {
+                throw new MapManagerException(Reason.MAXIMUM_SERVER_MAPS_EXCEEDED);
+            }
+        } while (!reservedMapCount.compareAndSet(reserved, reserved + newMapsCount));
+
+        try {
+            getPlayerMapStore(userUUID).reserveMaps(newMapsCount);
+        } catch (MapManagerException ex) {
+            reservedMapCount.addAndGet(-newMapsCount);
+            throw ex;
+        }
+    }
+
+    public static void releaseMaps(int reservedMapsCount, UUID userUUID) {
+        getPlayerMapStore(userUUID).releaseMaps(reservedMapsCount);
+        reservedMapCount.addAndGet(-reservedMapsCount);
+    }
+
+    static void updateCounters(int imagesDelta, int mapsDelta) {
+        imagesCount.addAndGet(imagesDelta);
+        mapCount.addAndGet(mapsDelta);
+    }
+
     /**
      * Returns the total number of minecraft maps used by ImageOnMap images.
      *
      * @return The count.
      */
     public static int getMapCount() {
-        int mapCount = 0;
-        synchronized (playerMaps) {
-            for (PlayerMapStore tmpStore : playerMaps) {
-                mapCount += tmpStore.getMapCount();
-            }
-        }
-        return mapCount;
+        return mapCount.get();
     }
 
     /**
@@ -325,13 +588,17 @@ public abstract class MapManager {
      * @return The count.
      */
     public static int getImagesCount() {
-        int imagesCount = 0;
-        synchronized (playerMaps) {
-            for (PlayerMapStore tmpStore : playerMaps) {
-                imagesCount += tmpStore.getImagesCount();
-            }
-        }
-        return imagesCount;
+        return imagesCount.get();
+    }
+
+    /**
+     * Returns the number of images rendered by the given player.
+     *
+     * @param playerUUID The player's UUID.
+     * @return The count.
+     */
+    public static int getImagesCount(UUID playerUUID) {
+        return getPlayerMapStore(playerUUID).getImagesCount();
     }
 
     /**
@@ -355,7 +622,7 @@ public abstract class MapManager {
             if (store == null) {
                 store = new PlayerMapStore(playerUUID);
 
-                playerMaps.add(store);
+                playerMaps.put(playerUUID, store);
                 store.load();
             }
         }
@@ -364,25 +631,23 @@ public abstract class MapManager {
 
     private static PlayerMapStore getExistingPlayerMapStore(UUID playerUUID) {
         synchronized (playerMaps) {
-            for (PlayerMapStore mapStore : playerMaps) {
-                if (mapStore.getUUID().equals(playerUUID)) {
-                    return mapStore;
-                }
-            }
+            return playerMaps.get(playerUUID);
         }
-        return null;
     }
 
     private static class AutosaveRunnable implements Runnable {
         @Override
         public void run() {
+            synchronized (MapManager.class) {
+                autosaveTask = null;
+            }
+
             synchronized (playerMaps) {
-                for (PlayerMapStore toolStore : playerMaps) {
+                for (PlayerMapStore toolStore : playerMaps.values()) {
                     if (toolStore.isModified()) {
                         toolStore.save();
                     }
                 }
-                autosaveTask = null;
             }
         }
 
@@ -0,0 +1,319 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * An inverted index of the words in the identifiers, names and source URLs of all the loaded maps,
+ * and in the names of their owners, to search maps across the whole server.
+ *
+ * <p>The words are kept sorted, so the words starting with a searched term are a range of the
+ * index. The words containing it elsewhere are found through the trigrams of the words, so
+ * only the terms of three characters or more also match inside words.</p>
+ */
+public final class MapSearchIndex {
+    private static final int EXACT_SCORE = 3;
+    private static final int PREFIX_SCORE = 2;
+    private static final int SUBSTRING_SCORE = 1;
+    private static final int TRIGRAM_LENGTH = 3;
+
+    private static final TreeMap<String, Set<ImageMap>> mapsByWord = new TreeMap<>();
+    private static final Map<ImageMap, String[]> wordsByMap = new HashMap<>();
+
+    private static final TreeMap<String, Set<UUID>> ownersByWord = new TreeMap<>();
+    private static final Map<UUID, String[]> wordsByOwner = new HashMap<>();
+    private static final Map<UUID, Set<ImageMap>> mapsByOwner = new HashMap<>();
+
+    private static final Map<String, Set<String>> wordsByTrigram = new HashMap<>();
+
+    private MapSearchIndex() {
+    }
+
+    /**
+     * Indexes a map, or indexes it again after its identifier, name or source changed.
+     *
+     * @param map The map.
+     */
+    static synchronized void index(ImageMap map) {
+        unindex(map);
+
+        final Set<String> words = new HashSet<>();
+        addWords(words, map.getId());
+        addWords(words, map.getName());
+        addWords(words, map.getSourceURL());
+
+        for (String word : words) {
+            mapsByWord.computeIfAbsent(word, key -> new HashSet<>()).add(map);
+            indexTrigrams(word);
+        }
+        wordsByMap.put(map, words.toArray(new String[0]));
+        mapsByOwner.computeIfAbsent(map.getUserUUID(), key -> new HashSet<>()).add(map);
+    }
+
+    static synchronized void unindex(ImageMap map) {
+        final String[] words = wordsByMap.remove(map);
+        if (words == null) {
+            return;
+        }
+
+        for (String word : words) {
+            final Set<ImageMap> maps = mapsByWord.get(word);
+            maps.remove(map);
+            if (maps.isEmpty()) {
+                mapsByWord.remove(word);
+                unindexTrigrams(word);
+            }
+        }
+
+        final Set<ImageMap> ownerMaps = mapsByOwner.get(map.getUserUUID());
+        if (ownerMaps != null) {
+            ownerMaps.remove(map);
+            if (ownerMaps.isEmpty()) {
+                mapsByOwner.remove(map.getUserUUID());
+            }
+        }
+    }
+
+    /**
+     * Indexes the name of a player, so their maps are found by their name.
+     *
+     * @param owner The player UUID.
+     * @param name  The name of the player.
+     */
+    static synchronized void indexOwner(UUID owner, String name) {
+        final String[] previousWords = wordsByOwner.remove(owner);
+        if (previousWords != null) {
+            for (String word : previousWords) {
+                final Set<UUID> owners = ownersByWord.get(word);
+                owners.remove(owner);
+                if (owners.isEmpty()) {
+                    ownersByWord.remove(word);
+                    unindexTrigrams(word);
+                }
+            }
+        }
+
+        final Set<String> words = new HashSet<>();
+        addWords(words, name);
+        for (String word : words) {
+            ownersByWord.computeIfAbsent(word, key -> new HashSet<>()).add(owner);
+            indexTrigrams(word);
+        }
+        wordsByOwner.put(owner, words.toArray(new String[0]));
+    }
+
+    static synchronized void clear() {
+        mapsByWord.clear();
+        wordsByMap.clear();
+        ownersByWord.clear();
+        wordsByOwner.clear();
+        mapsByOwner.clear();
+        wordsByTrigram.clear();
+    }
+
+    /**
+     * Searches the maps of all players.
+     *
+     * <p>Every word of the query has to match a word of the map or of its owner name, either
+     * entirely, by its start, or (for three characters or more) anywhere inside. The maps are
+     * ranked by how well their words matched, then by name.</p>
+     *
+     * @param query The searched text.
+     * @param limit The maximal number of maps to return.
+     * @return the maps found, the best matches first.
+     */
+    public static synchronized List<ImageMap> search(String query, int limit) {
+        final Set<String> terms = new HashSet<>();
+        addWords(terms, query);
+        if (terms.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Map<ImageMap, Integer> scores = null;
+        for (String term : terms) {
+            final Map<ImageMap, Integer> termScores = match(term);
+            if (scores == null) {
+                scores = termScores;
+            } else {
+                final Map<ImageMap, Integer> previousScores = scores;
+                scores = new HashMap<>();
+                for (Map.Entry<ImageMap, Integer> entry : termScores.entrySet()) {
+                    final Integer previousScore = previousScores.get(entry.getKey());
+                    if (previousScore != null) {
+                        scores.put(entry.getKey(), previousScore + entry.getValue());
+                    }
+                }
+            }
+            if (scores.isEmpty()) {
+                break;
+            }
+        }
+
+        final Map<ImageMap, Integer> finalScores = scores;
+        final List<ImageMap> results = new ArrayList<>(finalScores.keySet());
+        results.sort(Comparator.<ImageMap>comparingInt(finalScores::get).reversed()
+                .thenComparing(ImageMap::getName, String.CASE_INSENSITIVE_ORDER));
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * @return the best score of each map matching a single term.
+     */
+    private static Map<ImageMap, Integer> match(String term) {
+        final Map<ImageMap, Integer> scores = new HashMap<>();
+
+        final String prefixEnd = term + Character.MAX_VALUE;
+        for (Map.Entry<String, Set<ImageMap>> entry : mapsByWord.subMap(term, true, prefixEnd, false).entrySet()) {
+            addScore(scores, entry.getValue(), entry.getKey().equals(term) ? EXACT_SCORE : PREFIX_SCORE);
+        }
+        for (Map.Entry<String, Set<UUID>> entry : ownersByWord.subMap(term, true, prefixEnd, false).entrySet()) {
+            addOwnersScore(scores, entry.getValue(), entry.getKey().equals(term) ? EXACT_SCORE : PREFIX_SCORE);
+        }
+
+        if (term.length() >= TRIGRAM_LENGTH) {
+            for (String word : getWordsContaining(term)) {
+                if (word.startsWith(term)) {
+                    continue;
+                }
+                final Set<ImageMap> maps = mapsByWord.get(word);
+                if (maps != null) {
+                    addScore(scores, maps, SUBSTRING_SCORE);
+                }
+                final Set<UUID> owners = ownersByWord.get(word);
+                if (owners != null) {
+                    addOwnersScore(scores, owners, SUBSTRING_SCORE);
+                }
+            }
+        }
+        return scores;
+    }
+
+    private static void addScore(Map<ImageMap, Integer> scores, Set<ImageMap> maps, int score) {
+        for (ImageMap map : maps) {
+            scores.merge(map, score, Math::max);
+        }
+    }
+
+    private static void addOwnersScore(Map<ImageMap, Integer> scores, Set<UUID> owners, int score) {
+        for (UUID owner : owners) {
+            final Set<ImageMap> maps = mapsByOwner.get(owner);
+            if (maps != null) {
+                addScore(scores, maps, score);
+            }
+        }
+    }
+
+    /**
+     * Finds the words containing a term, by intersecting the words sharing each of its trigrams,
+     * starting with the rarest trigram.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<String> getWordsContaining(String term) {
+        final String[] trigrams = getTrigrams(term);
+        final Set<String>[] candidates = new Set[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            candidates[i] = wordsByTrigram.get(trigrams[i]);
+            if (candidates[i] == null) {
+                return new ArrayList<>();
+            }
+        }
+        Arrays.sort(candidates, Comparator.comparingInt(Set::size));
+
+        final List<String> words = new ArrayList<>();
+        for (String word : candidates[0]) {
+            if (word.contains(term)) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static void indexTrigrams(String word) {
+        for (String trigram : getTrigrams(word)) {
+            wordsByTrigram.computeIfAbsent(trigram, key -> new HashSet<>()).add(word);
+        }
+    }
+
+    private static void unindexTrigrams(String word) {
+        // The word may still be used by the other index.
+        if (mapsByWord.containsKey(word) || ownersByWord.containsKey(word)) {
+            return;
+        }
+        for (String trigram : getTrigrams(word)) {
+            final Set<String> words = wordsByTrigram.get(trigram);
+            if (words != null) {
+                words.remove(word);
+                if (words.isEmpty()) {
+                    wordsByTrigram.remove(trigram);
+                }
+            }
+        }
+    }
+
+    private static String[] getTrigrams(String word) {
+        if (word.length() < TRIGRAM_LENGTH) {
+            return new String[0];
+        }
+        final String[] trigrams = new String[word.length() - TRIGRAM_LENGTH + 1];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = word.substring(i, i + TRIGRAM_LENGTH);
+        }
+        return trigrams;
+    }
+
+    private static void addWords(Set<String> words, String text) {
+        if (text == null) {
+            return;
+        }
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A storage backend for the maps of the players.
+ *
+ * <p>The {@link PlayerMapStore}s keep the maps of the players in memory; the backend is
+ * notified of every change, so it can either persist it immediately or wait for the next
+ * {@link #save(PlayerMapStore) save}.</p>
+ */
+public interface MapStore {
+    /**
+     * @return the UUIDs of the players having maps stored in this backend.
+     * @throws IOException if the backend could not be read.
+     */
+    Set<UUID> getOwners() throws IOException;
+
+    /**
+     * Loads the maps of a player.
+     *
+     * @param playerUUID The UUID of the player.
+     * @return the maps of this player, in creation order.
+     * @throws IOException if the maps could not be read.
+     */
+    List<ImageMap> load(UUID playerUUID) throws IOException;
+
+    void mapAdded(ImageMap map);
+
+    void mapDeleted(ImageMap map);
+
+    void mapRenamed(ImageMap map, String oldId);
+
+    /**
+     * Called when the attributes of a map (other than its identifier and name) changed.
+     *
+     * @param map The map.
+     */
+    void mapUpdated(ImageMap map);
+
+    /**
+     * Persists the changes made to the maps of a player.
+     *
+     * @param store The maps of the player.
+     * @throws IOException if the maps could not be written.
+     */
+    void save(PlayerMapStore store) throws IOException;
+
+    /**
+     * Looks up the owner of a Minecraft map.
+     *
+     * @param mapID The ID of the Minecraft map.
+     * @return the UUID of the owner, or null if unknown or if the backend has no index of the map IDs.
+     */
+    UUID findOwner(int mapID);
+
+    /**
+     * Persists any pending change, and releases the resources held by this backend.
+     */
+    void close();
+
+    enum StorageFormat {
+        YAML,
+        BINARY,
+        SQLITE
+    }
+}
@@ -36,32 +36,65 @@
 
 package fr.moribus.imageonmap.map;
 
-import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.image.ImageUtils.ScalingType;
+import fr.moribus.imageonmap.image.RefreshScheduler;
 import fr.moribus.imageonmap.map.MapManagerException.Reason;
 import fr.zcraft.quartzlib.tools.PluginLogger;
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.bukkit.Material;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.bukkit.inventory.ItemStack;
 
 public class PlayerMapStore implements ConfigurationSerializable {
+    /**
+     * The order of the maps returned by {@link #getSortedMaps(SortOrder)}.
+     */
+    public enum SortOrder {
+        CREATION,
+        NAME
+    }
+
+    private static final Comparator<ImageMap> NAME_ORDER = Comparator
+            .comparing(ImageMap::getName, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(ImageMap::getId);
+
     private final UUID playerUUID;
     private final ArrayList<ImageMap> mapList = new ArrayList<ImageMap>();
+    /**
+     * The maps by identifier, sorted so the identifiers starting with a prefix are next to each other.
+     */
+    private final TreeMap<String, ImageMap> mapsById = new TreeMap<String, ImageMap>();
+
+    /**
+     * For each base identifier, the lowest suffix that may be free ({@code id-1}, {@code id-2}, ...).
+     */
+    private final HashMap<String, Integer> nextSuffixes = new HashMap<String, Integer>();
     private boolean modified = false;
-    private int mapCount = 0;
-    private FileConfiguration mapConfig = null;
-    private File mapsFile = null;
+
+    /**
+     * Incremented each time the list of maps or their names change, so the views of this store can
+     * tell whether they are up to date.
+     */
+    private long version = 0;
+    private final EnumMap<SortOrder, ImageMap[]> sortedMaps = new EnumMap<>(SortOrder.class);
+    private long sortedMapsVersion = -1;
+    private final AtomicInteger mapCount = new AtomicInteger();
+    private final AtomicInteger imagesCount = new AtomicInteger();
+    private final AtomicInteger reservedMapCount = new AtomicInteger();
 
     public PlayerMapStore(UUID playerUUID) {
         this.playerUUID = playerUUID;
@@ -99,16 +132,38 @@ public class PlayerMapStore implements ConfigurationSerializable {
 
     public synchronized void insertMap(ImageMap map) {
         add_Map(map);
+        MapManager.getStore().mapAdded(map);
+        notifyModification();
+    }
+
+    /**
+     * Inserts several maps at once, with a single modification notice.
+     *
+     * @param maps The maps to insert.
+     */
+    public synchronized void insertMaps(Collection<? extends ImageMap> maps) {
+        for (ImageMap map : maps) {
+            add_Map(map);
+            MapManager.getStore().mapAdded(map);
+        }
         notifyModification();
     }
 
     private void add_Map(ImageMap map) {
         mapList.add(map);
-        mapCount += map.getMapCount();
+        mapsById.put(map.getId(), map);
+        version++;
+        MapManager.indexMapsIDs(map.getMapsIDs());
+        MapSearchIndex.index(map);
+        RefreshScheduler.register(map);
+        mapCount.addAndGet(map.getMapCount());
+        imagesCount.incrementAndGet();
+        MapManager.updateCounters(1, map.getMapCount());
     }
 
     public synchronized void deleteMap(ImageMap map) throws MapManagerException {
         remove_Map(map);
+        MapManager.getStore().mapDeleted(map);
         notifyModification();
     }
 
@@ -116,28 +171,78 @@ public class PlayerMapStore implements ConfigurationSerializable {
         if (!mapList.remove(map)) {
             throw new MapManagerException(Reason.IMAGEMAP_DOES_NOT_EXIST);
         }
-        mapCount -= map.getMapCount();
+        unindexMap(map, map.getId());
+        version++;
+        MapManager.unindexMapsIDs(map.getMapsIDs());
+        MapSearchIndex.unindex(map);
+        RefreshScheduler.unregister(map);
+        mapCount.addAndGet(-map.getMapCount());
+        imagesCount.decrementAndGet();
+        MapManager.updateCounters(-1, -map.getMapCount());
     }
 
-    public synchronized boolean mapExists(String id) {
-        for (ImageMap map : mapList) {
-            if (map.getId().equals(id)) {
-                return true;
+    public synchronized void renameMap(ImageMap map, String name) {
+        final String oldId = map.getId();
+        map.rename(getNextAvailableMapID(name), name);
+        unindexMap(map, oldId);
+        mapsById.put(map.getId(), map);
+        version++;
+        MapSearchIndex.index(map);
+        MapManager.getStore().mapRenamed(map, oldId);
+        notifyModification();
+    }
+
+    public synchronized void setMapSource(ImageMap map, String sourceURL, int refreshInterval,
+                                          ScalingType scaling) {
+        RefreshScheduler.unregister(map);
+        map.setSource(sourceURL, refreshInterval, scaling);
+        RefreshScheduler.register(map);
+        MapSearchIndex.index(map);
+        MapManager.getStore().mapUpdated(map);
+        notifyModification();
+    }
+
+    /**
+     * Removes a map from the identifier index, and lets its suffix be reused.
+     */
+    private void unindexMap(ImageMap map, String id) {
+        if (mapsById.get(id) != map) {
+            return;
+        }
+        mapsById.remove(id);
+
+        final int separator = id.lastIndexOf('-');
+        if (separator <= 0) {
+            return;
+        }
+        final Integer nextSuffix = nextSuffixes.get(id.substring(0, separator));
+        if (nextSuffix == null) {
+            return;
+        }
+        try {
+            final int suffix = Integer.parseInt(id.substring(separator + 1));
+            if (suffix > 0 && suffix < nextSuffix) {
+                nextSuffixes.put(id.substring(0, separator), suffix);
             }
+        } catch (NumberFormatException ex) {
+            // Not a suffixed identifier.
         }
+    }
 
-        return false;
+    public synchronized boolean mapExists(String id) {
+        return mapsById.containsKey(id);
     }
 
-    public String getNextAvailableMapID(String mapId) {
+    public synchronized String getNextAvailableMapID(String mapId) {
         if (!mapExists(mapId)) {
             return mapId;
         }
-        int id = 0;
+        int id = nextSuffixes.getOrDefault(mapId, 1);
 
-        do {
+        while (mapExists(mapId + "-" + id)) {
             id++;
-        } while (mapExists(mapId + "-" + id));
+        }
+        nextSuffixes.put(mapId, id);
 
         return mapId + "-" + id;
     }
@@ -150,14 +255,57 @@ public class PlayerMapStore implements ConfigurationSerializable {
         return mapList.toArray(new ImageMap[mapList.size()]);
     }
 
-    public synchronized ImageMap getMap(String mapId) {
-        for (ImageMap map : mapList) {
-            if (map.getId().equals(mapId)) {
-                return map;
+    /**
+     * Returns the maps of this player, sorted. The sorted arrays are kept until the maps change,
+     * so they are shared between the callers and must not be modified.
+     *
+     * @param order The order of the maps.
+     * @return the maps.
+     */
+    public synchronized ImageMap[] getSortedMaps(SortOrder order) {
+        if (sortedMapsVersion != version) {
+            sortedMaps.clear();
+            sortedMapsVersion = version;
+        }
+
+        ImageMap[] maps = sortedMaps.get(order);
+        if (maps == null) {
+            maps = mapList.toArray(new ImageMap[mapList.size()]);
+            if (order == SortOrder.NAME) {
+                Arrays.sort(maps, NAME_ORDER);
             }
+            sortedMaps.put(order, maps);
         }
+        return maps;
+    }
 
-        return null;
+    /**
+     * @return a number changed each time maps are added to this store, removed or renamed.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Lists the identifiers of the maps of this player starting with a prefix, in alphabetical order.
+     *
+     * @param prefix The start of the identifiers.
+     * @param limit  The maximal number of identifiers to return.
+     * @return the identifiers.
+     */
+    public synchronized List<String> getMapIdsStartingWith(String prefix, int limit) {
+        final List<String> ids = new ArrayList<>();
+        for (String id : mapsById.tailMap(prefix, true).keySet()) {
+            if (ids.size() >= limit || !id.startsWith(prefix)) {
+                break;
+            }
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    public synchronized ImageMap getMap(String mapId) {
+        return mapsById.get(mapId);
     }
 
     /* ===== Getters & Setters ===== */
@@ -172,11 +320,33 @@ public class PlayerMapStore implements ConfigurationSerializable {
             return;
         }
 
-        if (getMapCount() + newMapsCount > limit) {
+        if (mapCount.get() + reservedMapCount.get() + newMapsCount > limit) {
             throw new MapManagerException(Reason.MAXIMUM_PLAYER_MAPS_EXCEEDED, limit);
         }
     }
 
+    /**
+     * Reserves some maps against the limit of this player, so concurrent renders cannot
+     * exceed it together.
+     *
+     * @param newMapsCount The number of maps to reserve.
+     * @throws MapManagerException if the player limit would be exceeded.
+     */
+    void reserveMaps(int newMapsCount) throws MapManagerException {
+        int limit = PluginConfiguration.MAP_PLAYER_LIMIT.get();
+        int reserved;
+        do {
+            reserved = reservedMapCount.get();
+            if (limit > 0 && mapCount.get() + reserved + newMapsCount > limit) {
+                throw new MapManagerException(Reason.MAXIMUM_PLAYER_MAPS_EXCEEDED, limit);
+            }
+        } while (!reservedMapCount.compareAndSet(reserved, reserved + newMapsCount));
+    }
+
+    void releaseMaps(int reservedMapsCount) {
+        reservedMapCount.addAndGet(-reservedMapsCount);
+    }
+
     public UUID getUUID() {
         return playerUUID;
     }
@@ -187,16 +357,17 @@ public class PlayerMapStore implements ConfigurationSerializable {
 
     public synchronized void notifyModification() {
         this.modified = true;
+        MapManager.scheduleAutosave();
     }
 
     /* ****** Serializing ***** */
 
-    public synchronized int getMapCount() {
-        return this.mapCount;
+    public int getMapCount() {
+        return this.mapCount.get();
     }
 
-    public synchronized int getImagesCount() {
-        return this.mapList.size();
+    public int getImagesCount() {
+        return this.imagesCount.get();
     }
 
     /* ****** Configuration Files management ***** */
@@ -214,66 +385,40 @@ public class PlayerMapStore implements ConfigurationSerializable {
         return map;
     }
 
-    private void loadFromConfig(ConfigurationSection section) {
-        if (section == null) {
-            return;
-        }
-        List<Map<String, Object>> list = (List<Map<String, Object>>) section.getList("mapList");
-        if (list == null) {
-            return;
-        }
+    /**
+     * @return a YAML export of the maps of this player, whatever the storage backend.
+     */
+    public FileConfiguration getToolConfig() {
+        FileConfiguration export = new YamlConfiguration();
+        export.set("PlayerMapStore", this.serialize());
+        return export;
+    }
 
-        for (Map<String, Object> tmpMap : list) {
-            try {
-                ImageMap newMap = ImageMap.fromConfig(tmpMap, playerUUID);
+    public void load() {
+        try {
+            for (ImageMap map : MapManager.getStore().load(playerUUID)) {
                 synchronized (this) {
-                    add_Map(newMap);
+                    add_Map(map);
                 }
-            } catch (InvalidConfigurationException ex) {
-                PluginLogger.warning("Could not load map data : ", ex);
             }
+        } catch (IOException ex) {
+            PluginLogger.error("Could not load maps file for player '{0}'", ex, playerUUID.toString());
         }
 
         try {
             checkMapLimit(0);
         } catch (MapManagerException ex) {
             PluginLogger.warning("Map limit exceeded for player {0} ({1} maps loaded)",
-                    playerUUID.toString(), mapList.size());
-        }
-    }
-
-    public FileConfiguration getToolConfig() {
-        if (mapConfig == null) {
-            load();
-        }
-
-        return mapConfig;
-    }
-
-    public void load() {
-        if (mapsFile == null) {
-            mapsFile = new File(ImageOnMap.getPlugin().getMapsDirectory(), playerUUID.toString() + ".yml");
-            if (!mapsFile.exists()) {
-                save();
-            }
+                    playerUUID.toString(), getImagesCount());
         }
-        mapConfig = YamlConfiguration.loadConfiguration(mapsFile);
-        loadFromConfig(getToolConfig().getConfigurationSection("PlayerMapStore"));
     }
 
-    public void save() {
-        if (mapsFile == null || mapConfig == null) {
-            return;
-        }
-        getToolConfig().set("PlayerMapStore", this.serialize());
+    public synchronized void save() {
         try {
-            getToolConfig().save(mapsFile);
-
+            MapManager.getStore().save(this);
         } catch (IOException ex) {
             PluginLogger.error("Could not save maps file for player '{0}'", ex, playerUUID.toString());
         }
-        synchronized (this) {
-            modified = false;
-        }
+        modified = false;
     }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.zcraft.quartzlib.components.worker.Worker;
+import fr.zcraft.quartzlib.components.worker.WorkerAttributes;
+import fr.zcraft.quartzlib.components.worker.WorkerCallback;
+import fr.zcraft.quartzlib.components.worker.WorkerRunnable;
+import fr.zcraft.quartzlib.core.QuartzLib;
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import fr.zcraft.quartzlib.tools.mojang.UUIDFetcher;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+/**
+ * Resolves player names to UUIDs without blocking the main thread.
+ *
+ * <p>Names are looked up in the online players, then in a local cache of names, and only then
+ * with a {@link RemoteLookup} (Mojang's API by default) in the background. On offline-mode
+ * servers, the UUID is derived from the name instead. The cache is filled with the owners of
+ * maps and the joining players, and saved in {@code names.yml}.</p>
+ */
+@WorkerAttributes(name = "Player Resolver")
+public class PlayerResolver extends Worker {
+    /**
+     * The default remote lookup, using Mojang's API.
+     */
+    public static final RemoteLookup MOJANG_LOOKUP = name -> {
+        for (Map.Entry<String, UUID> entry : UUIDFetcher.fetch(Collections.singletonList(name)).entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    };
+
+    private static final String CACHE_FILE_NAME = "names.yml";
+
+    private static final Map<String, UUID> uuidsByName = new ConcurrentHashMap<>();
+    private static final Map<UUID, String> namesByUUID = new ConcurrentHashMap<>();
+    private static volatile RemoteLookup remoteLookup = MOJANG_LOOKUP;
+    private static volatile boolean modified = false;
+
+    public static void init() {
+        QuartzLib.registerEvents(new JoinListener());
+        load();
+
+        try {
+            for (UUID owner : MapManager.getStore().getOwners()) {
+                if (!namesByUUID.containsKey(owner)) {
+                    // Read from the server's user cache, without any request.
+                    final String name = Bukkit.getOfflinePlayer(owner).getName();
+                    if (name != null) {
+                        put(name, owner);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            PluginLogger.error("Could not list the players having maps", ex);
+        }
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            put(player.getName(), player.getUniqueId());
+        }
+    }
+
+    public static void exit() {
+        save();
+        uuidsByName.clear();
+        namesByUUID.clear();
+    }
+
+    /**
+     * Replaces the remote lookup, used for the names that are not in the cache.
+     *
+     * @param lookup The new lookup.
+     */
+    public static void setRemoteLookup(RemoteLookup lookup) {
+        remoteLookup = lookup;
+    }
+
+    /**
+     * Resolves a player name.
+     *
+     * @param name     The player name.
+     * @param callback Called on the main thread with the UUID of the player, or {@code null} if
+     *                 no player has this name.
+     */
+    public static void resolve(final String name, final Consumer<UUID> callback) {
+        final Player player = Bukkit.getPlayerExact(name);
+        if (player != null) {
+            callback.accept(player.getUniqueId());
+            return;
+        }
+
+        final UUID cachedUUID = uuidsByName.get(name.toLowerCase(Locale.ROOT));
+        if (cachedUUID != null) {
+            callback.accept(cachedUUID);
+            return;
+        }
+
+        if (!Bukkit.getOnlineMode()) {
+            // Offline-mode UUIDs are derived from the name, and unknown to Mojang.
+            final UUID offlineUUID = Bukkit.getOfflinePlayer(name).getUniqueId();
+            put(name, offlineUUID);
+            callback.accept(offlineUUID);
+            return;
+        }
+
+        submitQuery(new WorkerRunnable<UUID>() {
+            @Override
+            public UUID run() throws Throwable {
+                final UUID uuid = remoteLookup.lookup(name);
+                if (uuid != null) {
+                    put(name, uuid);
+                }
+                return uuid;
+            }
+        }, new WorkerCallback<UUID>() {
+            @Override
+            public void finished(UUID uuid) {
+                callback.accept(uuid);
+            }
+
+            @Override
+            public void errored(Throwable exception) {
+                PluginLogger.warning("Could not look up the UUID of {0}: {1}", name, exception.getMessage());
+                callback.accept(null);
+            }
+        });
+    }
+
+    /**
+     * Looks up a player name in the online players and the local cache only.
+     *
+     * @param name The player name.
+     * @return the UUID of the player, or {@code null} if unknown.
+     */
+    public static UUID getCachedUUID(String name) {
+        final Player player = Bukkit.getPlayerExact(name);
+        if (player != null) {
+            return player.getUniqueId();
+        }
+        return uuidsByName.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @param uuid The player UUID.
+     * @return the last known name of the player, or {@code null}.
+     */
+    public static String getName(UUID uuid) {
+        return namesByUUID.get(uuid);
+    }
+
+    private static void put(String name, UUID uuid) {
+        final String previousName = namesByUUID.put(uuid, name);
+        if (name.equals(previousName)) {
+            return;
+        }
+
+        if (previousName != null) {
+            uuidsByName.remove(previousName.toLowerCase(Locale.ROOT), uuid);
+        }
+        uuidsByName.put(name.toLowerCase(Locale.ROOT), uuid);
+        MapSearchIndex.indexOwner(uuid, name);
+        modified = true;
+    }
+
+    private static File getCacheFile() {
+        return new File(ImageOnMap.getPlugin().getDataFolder(), CACHE_FILE_NAME);
+    }
+
+    private static void load() {
+        final File file = getCacheFile();
+        if (!file.isFile()) {
+            return;
+        }
+
+        final YamlConfiguration cache = YamlConfiguration.loadConfiguration(file);
+        for (String key : cache.getKeys(false)) {
+            try {
+                final UUID uuid = UUID.fromString(key);
+                final String name = cache.getString(key);
+                if (name != null) {
+                    namesByUUID.put(uuid, name);
+                    uuidsByName.put(name.toLowerCase(Locale.ROOT), uuid);
+                    MapSearchIndex.indexOwner(uuid, name);
+                }
+            } catch (IllegalArgumentException ignored) {
+                // Not a UUID.
+            }
+        }
+    }
+
+    private static void save() {
+        if (!modified) {
+            return;
+        }
+
+        final YamlConfiguration cache = new YamlConfiguration();
+        for (Map.Entry<UUID, String> entry : namesByUUID.entrySet()) {
+            cache.set(entry.getKey().toString(), entry.getValue());
+        }
+
+        try {
+            cache.save(getCacheFile());
+            modified = false;
+        } catch (IOException ex) {
+            PluginLogger.error("Could not save the player names cache", ex);
+        }
+    }
+
+    private static final class JoinListener implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onPlayerJoin(PlayerJoinEvent event) {
+            put(event.getPlayer().getName(), event.getPlayer().getUniqueId());
+        }
+    }
+
+    /**
+     * Looks up the UUID of a player name, from outside of the server. Called in the background.
+     */
+    @FunctionalInterface
+    public interface RemoteLookup {
+        /**
+         * @param name The player name.
+         * @return the UUID of the player, or {@code null} if no player has this name.
+         * @throws Exception if the lookup failed.
+         */
+        UUID lookup(String name) throws Exception;
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.image.ImageUtils.ScalingType;
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Stores the maps of every player in an embedded SQLite database ({@code maps.db}), using the
+ * driver bundled with the server.
+ *
+ * <p>The maps are indexed by owner and identifier, and every Minecraft map ID is indexed to
+ * its owner. Changes are queued, and written in a single transaction on save. A batch that
+ * could not be written is kept and retried later, with a delay doubling after each failure;
+ * changes that conflict with the database are dropped, as they would never be written.</p>
+ */
+class SqliteMapStore implements MapStore {
+    private static final String DATABASE_FILE = "maps.db";
+
+    /**
+     * The base result code of SQLite for constraint violations.
+     */
+    private static final int SQLITE_CONSTRAINT = 19;
+
+    private static final long MIN_RETRY_DELAY = 20L * 10;
+    private static final long MAX_RETRY_DELAY = 20L * 60 * 10;
+
+    private final File directory;
+    private final Connection connection;
+    private final List<Operation> pendingOperations = new ArrayList<>();
+
+    /**
+     * The delay before retrying a failed batch, in ticks, or 0 if the last batch was written.
+     */
+    private long retryDelay = 0;
+    private BukkitTask retryTask = null;
+
+    SqliteMapStore(File directory) throws SQLException {
+        this.directory = directory;
+
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("The SQLite driver is not available", ex);
+        }
+
+        connection = DriverManager.getConnection(
+                "jdbc:sqlite:" + new File(directory, DATABASE_FILE).getAbsolutePath());
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS players (owner TEXT PRIMARY KEY)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS maps (owner TEXT NOT NULL, id TEXT NOT NULL, "
+                    + "name TEXT NOT NULL, type INTEGER NOT NULL, columns INTEGER NOT NULL, rows INTEGER NOT NULL, "
+                    + "map_ids BLOB NOT NULL, source_url TEXT, refresh_interval INTEGER NOT NULL DEFAULT 0, "
+                    + "scaling TEXT, PRIMARY KEY (owner, id))");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS map_ids (map_id INTEGER PRIMARY KEY, "
+                    + "owner TEXT NOT NULL, id TEXT NOT NULL)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS map_ids_by_map ON map_ids (owner, id)");
+        }
+    }
+
+    @Override
+    public synchronized Set<UUID> getOwners() throws IOException {
+        // Players with a YAML or binary file are imported on load.
+        final Set<UUID> owners = MapManager.getPlayersWithFile(directory, YamlMapStore.FILE_EXTENSION);
+        owners.addAll(MapManager.getPlayersWithFile(directory, BinaryMapFile.FILE_EXTENSION));
+
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT owner FROM players")) {
+            while (result.next()) {
+                owners.add(UUID.fromString(result.getString(1)));
+            }
+        } catch (SQLException ex) {
+            throw new IOException("Could not read the maps database", ex);
+        }
+        return owners;
+    }
+
+    @Override
+    public synchronized List<ImageMap> load(UUID playerUUID) throws IOException {
+        final List<ImageMap> maps = new ArrayList<>();
+
+        try {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT 1 FROM players WHERE owner = ?")) {
+                statement.setString(1, playerUUID.toString());
+                try (ResultSet result = statement.executeQuery()) {
+                    if (!result.next()) {
+                        return importPlayer(playerUUID);
+                    }
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT id, name, type, columns, rows, map_ids, source_url, refresh_interval, scaling "
+                            + "FROM maps WHERE owner = ? ORDER BY rowid")) {
+                statement.setString(1, playerUUID.toString());
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        maps.add(readMap(playerUUID, result));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            throw new IOException("Could not read the maps database", ex);
+        }
+        return maps;
+    }
+
+    @Override
+    public void mapAdded(ImageMap map) {
+        final String owner = map.getUserUUID().toString();
+        final String id = map.getId();
+        final String name = map.getName() != null ? map.getName() : id;
+        final int type = map.getType().ordinal();
+        final int columns = map instanceof PosterMap ? ((PosterMap) map).getColumnCount() : 1;
+        final int rows = map instanceof PosterMap ? ((PosterMap) map).getRowCount() : 1;
+        final int[] mapsIDs = map.getMapsIDs().clone();
+        final String sourceURL = map.getSourceURL();
+        final int refreshInterval = map.getRefreshInterval();
+        final String scaling = map.getRefreshScaling().name();
+
+        enqueue(database -> {
+            try (PreparedStatement statement = database.prepareStatement(
+                    "INSERT OR REPLACE INTO maps (owner, id, name, type, columns, rows, map_ids, source_url, "
+                            + "refresh_interval, scaling) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                statement.setString(1, owner);
+                statement.setString(2, id);
+                statement.setString(3, name);
+                statement.setInt(4, type);
+                statement.setInt(5, columns);
+                statement.setInt(6, rows);
+                statement.setBytes(7, toBytes(mapsIDs));
+                statement.setString(8, sourceURL);
+                statement.setInt(9, refreshInterval);
+                statement.setString(10, scaling);
+                statement.executeUpdate();
+            }
+
+            try (PreparedStatement statement = database.prepareStatement(
+                    "INSERT OR REPLACE INTO map_ids VALUES (?, ?, ?)")) {
+                for (int mapID : mapsIDs) {
+                    statement.setInt(1, mapID);
+                    statement.setString(2, owner);
+                    statement.setString(3, id);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+    }
+
+    @Override
+    public void mapDeleted(ImageMap map) {
+        final String owner = map.getUserUUID().toString();
+        final String id = map.getId();
+
+        enqueue(database -> {
+            for (String table : new String[] {"maps", "map_ids"}) {
+                try (PreparedStatement statement = database.prepareStatement(
+                        "DELETE FROM " + table + " WHERE owner = ? AND id = ?")) {
+                    statement.setString(1, owner);
+                    statement.setString(2, id);
+                    statement.executeUpdate();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void mapRenamed(ImageMap map, String oldId) {
+        final String owner = map.getUserUUID().toString();
+        final String id = map.getId();
+        final String name = map.getName();
+
+        enqueue(database -> {
+            try (PreparedStatement statement = database.prepareStatement(
+                    "UPDATE maps SET id = ?, name = ? WHERE owner = ? AND id = ?")) {
+                statement.setString(1, id);
+                statement.setString(2, name);
+                statement.setString(3, owner);
+                statement.setString(4, oldId);
+                statement.executeUpdate();
+            }
+
+            try (PreparedStatement statement = database.prepareStatement(
+                    "UPDATE map_ids SET id = ? WHERE owner = ? AND id = ?")) {
+                statement.setString(1, id);
+                statement.setString(2, owner);
+                statement.setString(3, oldId);
+                statement.executeUpdate();
+            }
+        });
+    }
+
+    @Override
+    public void mapUpdated(ImageMap map) {
+        final String owner = map.getUserUUID().toString();
+        final String id = map.getId();
+        final String sourceURL = map.getSourceURL();
+        final int refreshInterval = map.getRefreshInterval();
+        final String scaling = map.getRefreshScaling().name();
+
+        enqueue(database -> {
+            try (PreparedStatement statement = database.prepareStatement(
+                    "UPDATE maps SET source_url = ?, refresh_interval = ?, scaling = ? WHERE owner = ? AND id = ?")) {
+                statement.setString(1, sourceURL);
+                statement.setInt(2, refreshInterval);
+                statement.setString(3, scaling);
+                statement.setString(4, owner);
+                statement.setString(5, id);
+                statement.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Every change is queued as it happens: this writes the pending changes of all the players,
+     * unless a failed batch is waiting to be retried.
+     */
+    @Override
+    public synchronized void save(PlayerMapStore store) {
+        if (retryTask == null) {
+            tryFlush();
+        }
+    }
+
+    /**
+     * The pending changes are not written first: the owner may be out of date for the maps
+     * changed since the last batch, and the caller must check it.
+     */
+    @Override
+    public synchronized UUID findOwner(int mapID) {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT owner FROM map_ids WHERE map_id = ?")) {
+            statement.setInt(1, mapID);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? UUID.fromString(result.getString(1)) : null;
+            }
+        } catch (SQLException ex) {
+            PluginLogger.error("Could not read the maps database", ex);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (retryTask != null) {
+            retryTask.cancel();
+            retryTask = null;
+        }
+
+        try {
+            flush();
+        } catch (SQLException ex) {
+            PluginLogger.error("Could not write the maps database", ex);
+        }
+
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            PluginLogger.error("Could not close the maps database", ex);
+        }
+    }
+
+    /**
+     * Imports the YAML or binary file of a player the first time it is loaded.
+     */
+    private List<ImageMap> importPlayer(UUID playerUUID) throws IOException {
+        List<ImageMap> maps = YamlMapStore.readFile(directory, playerUUID);
+        if (maps == null) {
+            final BinaryMapFile binaryFile = new BinaryMapFile(directory, playerUUID);
+            maps = binaryFile.exists() ? binaryFile.read() : new ArrayList<>();
+        }
+
+        final String owner = playerUUID.toString();
+        enqueue(database -> {
+            try (PreparedStatement statement = database.prepareStatement(
+                    "INSERT OR IGNORE INTO players VALUES (?)")) {
+                statement.setString(1, owner);
+                statement.executeUpdate();
+            }
+        });
+        for (ImageMap map : maps) {
+            mapAdded(map);
+        }
+        if (retryTask == null) {
+            tryFlush();
+        }
+
+        if (!maps.isEmpty()) {
+            PluginLogger.info("Imported maps file of player {0} into the database", owner);
+        }
+        return maps;
+    }
+
+    private synchronized void enqueue(Operation operation) {
+        pendingOperations.add(operation);
+    }
+
+    /**
+     * Writes the pending changes. If they could not be written, they are retried later.
+     */
+    private synchronized void tryFlush() {
+        retryTask = null;
+        try {
+            flush();
+            retryDelay = 0;
+        } catch (SQLException ex) {
+            retryDelay = Math.min(MAX_RETRY_DELAY, Math.max(MIN_RETRY_DELAY, retryDelay * 2));
+            PluginLogger.error("Could not write the maps database, retrying in {0} seconds", ex, retryDelay / 20);
+            retryTask = Bukkit.getScheduler().runTaskLater(ImageOnMap.getPlugin(), this::tryFlush, retryDelay);
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (pendingOperations.isEmpty()) {
+            return;
+        }
+
+        connection.setAutoCommit(false);
+        try {
+            final Iterator<Operation> iterator = pendingOperations.iterator();
+            while (iterator.hasNext()) {
+                try {
+                    iterator.next().execute(connection);
+                } catch (SQLException ex) {
+                    if ((ex.getErrorCode() & 0xff) != SQLITE_CONSTRAINT) {
+                        throw ex;
+                    }
+                    // Only this statement is aborted, and it would fail again.
+                    PluginLogger.error("Dropped a change conflicting with the maps database", ex);
+                    iterator.remove();
+                }
+            }
+            connection.commit();
+            pendingOperations.clear();
+        } catch (SQLException ex) {
+            // The changes are kept, to be written again with the next batch.
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private ImageMap readMap(UUID playerUUID, ResultSet result) throws SQLException {
+        final String id = result.getString(1);
+        final String name = result.getString(2);
+        final int[] mapsIDs = toInts(result.getBytes(6));
+
+        final ImageMap map;
+        if (result.getInt(3) == ImageMap.Type.POSTER.ordinal()) {
+            map = new PosterMap(playerUUID, mapsIDs, id, name, result.getInt(4), result.getInt(5));
+        } else {
+            map = new SingleMap(playerUUID, mapsIDs[0], id, name);
+        }
+
+        final String sourceURL = result.getString(7);
+        if (sourceURL != null) {
+            ScalingType scaling;
+            try {
+                scaling = ScalingType.valueOf(result.getString(9));
+            } catch (IllegalArgumentException | NullPointerException ex) {
+                scaling = ScalingType.CONTAINED;
+            }
+            map.setSource(sourceURL, result.getInt(8), scaling);
+        }
+        return map;
+    }
+
+    private static byte[] toBytes(int[] values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * Integer.BYTES);
+        buffer.asIntBuffer().put(values);
+        return buffer.array();
+    }
+
+    private static int[] toInts(byte[] bytes) {
+        final int[] values = new int[bytes.length / Integer.BYTES];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+
+    private interface Operation {
+        void execute(Connection database) throws SQLException;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import fr.zcraft.quartzlib.tools.PluginLogger;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Stores the maps of each player in a readable {@code <uuid>.yml} file, rewritten on save.
+ */
+class YamlMapStore implements MapStore {
+    static final String FILE_EXTENSION = "yml";
+
+    private final File directory;
+
+    YamlMapStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads the YAML file of a player.
+     *
+     * @param directory  The maps directory.
+     * @param playerUUID The UUID of the player.
+     * @return the maps of this player, or null if there is no YAML file for this player.
+     */
+    static List<ImageMap> readFile(File directory, UUID playerUUID) {
+        final File file = new File(directory, playerUUID.toString() + "." + FILE_EXTENSION);
+        if (!file.exists()) {
+            return null;
+        }
+
+        final List<ImageMap> maps = new ArrayList<>();
+        final ConfigurationSection section = YamlConfiguration.loadConfiguration(file)
+                .getConfigurationSection("PlayerMapStore");
+        if (section == null) {
+            return maps;
+        }
+        List<Map<String, Object>> list = (List<Map<String, Object>>) section.getList("mapList");
+        if (list == null) {
+            return maps;
+        }
+
+        for (Map<String, Object> tmpMap : list) {
+            try {
+                maps.add(ImageMap.fromConfig(tmpMap, playerUUID));
+            } catch (InvalidConfigurationException ex) {
+                PluginLogger.warning("Could not load map data : ", ex);
+            }
+        }
+        return maps;
+    }
+
+    @Override
+    public Set<UUID> getOwners() {
+        final Set<UUID> owners = MapManager.getPlayersWithFile(directory, FILE_EXTENSION);
+        owners.addAll(MapManager.getPlayersWithFile(directory, BinaryMapFile.FILE_EXTENSION));
+        return owners;
+    }
+
+    @Override
+    public List<ImageMap> load(UUID playerUUID) throws IOException {
+        final List<ImageMap> maps = readFile(directory, playerUUID);
+        if (maps != null) {
+            return maps;
+        }
+
+        // Imports the maps of a binary store, if the storage format was switched back to YAML.
+        final BinaryMapFile binaryFile = new BinaryMapFile(directory, playerUUID);
+        if (!binaryFile.exists()) {
+            return new ArrayList<>();
+        }
+
+        final List<ImageMap> importedMaps = binaryFile.read();
+        PluginLogger.info("Imported binary maps file of player {0}", playerUUID.toString());
+        return importedMaps;
+    }
+
+    @Override
+    public void mapAdded(ImageMap map) {
+    }
+
+    @Override
+    public void mapDeleted(ImageMap map) {
+    }
+
+    @Override
+    public void mapRenamed(ImageMap map, String oldId) {
+    }
+
+    @Override
+    public void mapUpdated(ImageMap map) {
+    }
+
+    @Override
+    public void save(PlayerMapStore store) throws IOException {
+        final FileConfiguration config = new YamlConfiguration();
+        config.set("PlayerMapStore", store.serialize());
+        config.save(new File(directory, store.getUUID().toString() + "." + FILE_EXTENSION));
+    }
+
+    @Override
+    public UUID findOwner(int mapID) {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -43,16 +43,25 @@ import fr.zcraft.quartzlib.tools.PluginLogger;
 
 public class MigratorExecutor {
     private static Thread migratorThread;
+    private static V3Migrator migrator;
 
     public static void migrate() {
         if (isRunning()) {
             PluginLogger.error(I.t("Migration is already running."));
             return;
         }
-        migratorThread = new Thread(new V3Migrator(ImageOnMap.getPlugin()), "ImageOnMap-Migration");
+        migrator = new V3Migrator(ImageOnMap.getPlugin());
+        migratorThread = new Thread(migrator, "ImageOnMap-Migration");
         migratorThread.start();
     }
 
+    /**
+     * @return the last migration started, or {@code null}.
+     */
+    public static V3Migrator getMigrator() {
+        return migrator;
+    }
+
     public static boolean isRunning() {
         return migratorThread != null && migratorThread.isAlive();
     }
@@ -121,6 +121,10 @@ class OldSavedPoster {
         return userName;
     }
 
+    public String getPosterName() {
+        return posterName;
+    }
+
     public short[] getMapsIds() {
         return mapsIds;
     }
@@ -37,28 +37,42 @@
 package fr.moribus.imageonmap.migration;
 
 import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.map.ImageMap;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.PlayerResolver;
 import fr.zcraft.quartzlib.components.i18n.I;
 import fr.zcraft.quartzlib.tools.PluginLogger;
 import fr.zcraft.quartzlib.tools.mojang.UUIDFetcher;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -66,8 +80,53 @@ import org.bukkit.plugin.Plugin;
 
 /**
  * This class represents and executes the ImageOnMap v3.x migration process
+ *
+ * <p>Progress is saved in a checkpoint file after the backups and after each batch of players
+ * and records, so an interrupted migration resumes where it stopped instead of starting over.</p>
  */
 public class V3Migrator implements Runnable {
+    /**
+     * The default UUID resolver: players known by the server first, then Mojang's API.
+     */
+    public static final UUIDResolver DEFAULT_UUID_RESOLVER = names -> {
+        final Map<String, UUID> uuids = new HashMap<>();
+        final List<String> unknownNames = new ArrayList<>();
+        for (String name : names) {
+            final UUID uuid = PlayerResolver.getCachedUUID(name);
+            if (uuid != null) {
+                uuids.put(name, uuid);
+            } else {
+                unknownNames.add(name);
+            }
+        }
+        if (!unknownNames.isEmpty()) {
+            uuids.putAll(UUIDFetcher.fetch(unknownNames));
+        }
+        return uuids;
+    };
+
+    /**
+     * The number of player names resolved at once
+     */
+    private static final int UUID_BATCH_SIZE = 100;
+
+    /**
+     * The number of records migrated between two saves and checkpoints
+     */
+    private static final int RECORD_BATCH_SIZE = 500;
+
+    /**
+     * The size of the buffer used to compute checksums
+     */
+    private static final int CHECKSUM_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The name of the file keeping the progress of an interrupted migration
+     */
+    private static final String CHECKPOINT_FILE_NAME = "migration-checkpoint.yml";
+
+    private static volatile UUIDResolver uuidResolver = DEFAULT_UUID_RESOLVER;
+
     /**
      * The name of the former images directory
      */
@@ -136,6 +195,28 @@ public class V3Migrator implements Runnable {
      * Defines if the migration process is currently running
      */
     private boolean isRunning = false;
+    /**
+     * The file keeping the progress of the migration
+     */
+    private final File checkpointFile;
+    /**
+     * The keys of the records already migrated, from the checkpoint
+     */
+    private final Set<String> migratedRecords = new HashSet<>();
+    /**
+     * Defines if the backups were already made, from the checkpoint
+     */
+    private boolean backedUp = false;
+    /**
+     * The current step of the migration
+     */
+    private volatile Stage stage = Stage.PREPARING;
+    /**
+     * The number of records migrated (or skipped) so far, and the total number of records
+     */
+    private final AtomicInteger processedRecords = new AtomicInteger();
+    private volatile int totalRecords = 0;
+    private volatile long startTime = 0;
 
     public V3Migrator(ImageOnMap plugin) {
         this.plugin = plugin;
@@ -148,9 +229,21 @@ public class V3Migrator implements Runnable {
         backupsPrev3Directory = new File(dataFolder, BACKUPS_PREV3_DIRECTORY_NAME);
         backupsPostv3Directory = new File(dataFolder, BACKUPS_POSTV3_DIRECTORY_NAME);
 
+        checkpointFile = new File(dataFolder, CHECKPOINT_FILE_NAME);
+
         postersToMigrate = new ArrayDeque<>();
         mapsToMigrate = new ArrayDeque<>();
         userNamesToFetch = new HashSet<>();
+        usersUUIDs = new HashMap<>();
+    }
+
+    /**
+     * Replaces the resolver used to get the UUIDs of the players, like a local stub.
+     *
+     * @param resolver The new resolver.
+     */
+    public static void setUUIDResolver(UUIDResolver resolver) {
+        uuidResolver = resolver;
     }
 
     /**
@@ -214,22 +307,21 @@ public class V3Migrator implements Runnable {
                     "Could not check file integrity because of NoSuchAlgorithmException : " + ex.getMessage());
         }
 
-        FileInputStream inputStream = new FileInputStream(file);
-
-        byte[] data = new byte[1024];
-        int read = 0;
-
-        while ((read = inputStream.read(data)) != -1) {
-            instance.update(data);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer data = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE);
+            while (channel.read(data) != -1) {
+                data.flip();
+                instance.update(data);
+                data.clear();
+            }
         }
 
         byte[] hashBytes = instance.digest();
 
         StringBuilder buffer = new StringBuilder();
-        char hexChar;
-        for (int i = 0; i < hashBytes.length; i++) {
-            hexChar = Integer.toHexString((hashBytes[i] & 0xff) + 0x100).charAt(0);
-            buffer.append(hexChar);
+        for (byte hashByte : hashBytes) {
+            buffer.append(Character.forDigit((hashByte >> 4) & 0xF, 16));
+            buffer.append(Character.forDigit(hashByte & 0xF, 16));
         }
 
         return buffer.toString();
@@ -239,22 +331,33 @@ public class V3Migrator implements Runnable {
      * Executes the full migration
      */
     private void migrate() {
+        startTime = System.currentTimeMillis();
         try {
             if (!spotFilesToMigrate()) {
+                stage = Stage.ABORTED;
                 return;
             }
-            if (checkForExistingBackups()) {
+            final boolean resuming = loadCheckpoint();
+            if (!resuming && checkForExistingBackups()) {
+                stage = Stage.ABORTED;
                 return;
             }
             if (!loadOldFiles()) {
+                stage = Stage.ABORTED;
                 return;
             }
-            backupMapData();
+            if (!backedUp) {
+                backupMapData();
+                backedUp = true;
+                saveCheckpoint();
+            }
             fetchUUIDs();
-            if (!fetchMissingUUIDs()) {
+            if (!checkMissingUUIDs()) {
+                stage = Stage.ABORTED;
                 return;
             }
         } catch (Exception ex) {
+            stage = Stage.FAILED;
             PluginLogger.error(I.t("Error while preparing migration"));
             PluginLogger.error(I.t("Aborting migration. No change has been made."), ex);
             return;
@@ -264,13 +367,63 @@ public class V3Migrator implements Runnable {
             mergeMapData();
             saveChanges();
             cleanup();
+            Files.deleteIfExists(checkpointFile.toPath());
+            stage = Stage.DONE;
         } catch (Exception ex) {
+            stage = Stage.FAILED;
             PluginLogger.error(I.t("Error while migrating"), ex);
             PluginLogger.error(I.t("Aborting migration. Some changes may already have been made."));
-            PluginLogger.error(I.t(
-                    "Before trying to migrate again, you must recover player files from the backups,"
-                            + " and then move the backups away from the plugin directory to avoid overwriting them."));
+            PluginLogger.error(I.t("Run the migration again to resume it from the last checkpoint."));
+        }
+    }
+
+    /**
+     * Loads the progress of an interrupted migration, if any
+     *
+     * @return true if the migration is resumed
+     */
+    private boolean loadCheckpoint() {
+        if (!checkpointFile.isFile()) {
+            return false;
         }
+
+        final YamlConfiguration checkpoint = YamlConfiguration.loadConfiguration(checkpointFile);
+        backedUp = checkpoint.getBoolean("backed-up");
+        migratedRecords.addAll(checkpoint.getStringList("migrated"));
+
+        final ConfigurationSection uuids = checkpoint.getConfigurationSection("uuids");
+        if (uuids != null) {
+            for (String name : uuids.getKeys(false)) {
+                try {
+                    usersUUIDs.put(name, UUID.fromString(uuids.getString(name)));
+                } catch (IllegalArgumentException ignored) {
+                    // Resolved again.
+                }
+            }
+        }
+
+        PluginLogger.info(I.t("Resuming the previous migration: {0} records and {1} players already done.",
+                migratedRecords.size(), usersUUIDs.size()));
+        return true;
+    }
+
+    /**
+     * Saves the progress of the migration
+     *
+     * @throws IOException if the checkpoint could not be written
+     */
+    private void saveCheckpoint() throws IOException {
+        final YamlConfiguration checkpoint = new YamlConfiguration();
+        checkpoint.set("backed-up", backedUp);
+        checkpoint.set("migrated", new ArrayList<>(migratedRecords));
+        for (Map.Entry<String, UUID> entry : usersUUIDs.entrySet()) {
+            checkpoint.set("uuids." + entry.getKey(), entry.getValue().toString());
+        }
+
+        final File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        checkpoint.save(tmpFile);
+        Files.move(tmpFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
     }
 
     /**
@@ -308,8 +461,8 @@ public class V3Migrator implements Runnable {
      * @return true if a non-empty backup directory exists, false otherwise
      */
     private boolean checkForExistingBackups() {
-        if ((backupsPrev3Directory.exists() && backupsPrev3Directory.list().length == 0)
-                || (backupsPostv3Directory.exists() && backupsPostv3Directory.list().length == 0)) {
+        if ((backupsPrev3Directory.exists() && backupsPrev3Directory.list().length != 0)
+                || (backupsPostv3Directory.exists() && backupsPostv3Directory.list().length != 0)) {
             PluginLogger.error(I.t("Backup directories already exists."));
             PluginLogger.error(I.t("This means that a migration has already been done,"
                     + " or may not have ended well."));
@@ -327,8 +480,9 @@ public class V3Migrator implements Runnable {
      *
      * @throws IOException
      **/
-    private void backupMapData() throws IOException {
+    private void backupMapData() throws IOException, InterruptedException {
         PluginLogger.info(I.t("Backing up map data before migrating..."));
+        stage = Stage.BACKING_UP;
 
         if (!backupsPrev3Directory.exists()) {
             backupsPrev3Directory.mkdirs();
@@ -337,20 +491,40 @@ public class V3Migrator implements Runnable {
             backupsPostv3Directory.mkdirs();
         }
 
+        final Map<File, File> copies = new HashMap<>();
         if (oldMapsFile != null && oldMapsFile.exists()) {
-            File oldMapsFileBackup = new File(backupsPrev3Directory, oldMapsFile.getName());
-            verifiedBackupCopy(oldMapsFile, oldMapsFileBackup);
+            copies.put(oldMapsFile, new File(backupsPrev3Directory, oldMapsFile.getName()));
         }
-
         if (oldPostersFile != null && oldPostersFile.exists()) {
-            File oldPostersFileBackup = new File(backupsPrev3Directory, oldPostersFile.getName());
-            verifiedBackupCopy(oldPostersFile, oldPostersFileBackup);
+            copies.put(oldPostersFile, new File(backupsPrev3Directory, oldPostersFile.getName()));
         }
-
-        File backupFile;
         for (File mapFile : plugin.getMapsDirectory().listFiles()) {
-            backupFile = new File(backupsPostv3Directory, mapFile.getName());
-            verifiedBackupCopy(mapFile, backupFile);
+            if (mapFile.isFile()) {
+                copies.put(mapFile, new File(backupsPostv3Directory, mapFile.getName()));
+            }
+        }
+
+        // The copies are checked by hashing both files, so they are made in parallel.
+        final ExecutorService copiers = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (Map.Entry<File, File> copy : copies.entrySet()) {
+                results.add(copiers.submit(() -> {
+                    verifiedBackupCopy(copy.getKey(), copy.getValue());
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            copiers.shutdownNow();
         }
 
         PluginLogger.info(I.t("Backup complete."));
@@ -423,15 +597,37 @@ public class V3Migrator implements Runnable {
     }
 
     /**
-     * Fetches all the needed UUIDs from Mojang's UUID conversion service
+     * Resolves the UUIDs of the players by batches, through the {@link UUIDResolver}. Each batch
+     * is saved in the checkpoint, so the names already resolved are not looked up again.
      *
-     * @throws IOException          if the fetcher could not connect to Mojang's servers
+     * @throws IOException          if the resolver could not connect to Mojang's servers
      * @throws InterruptedException if the thread was interrupted while fetching UUIDs
      */
     private void fetchUUIDs() throws IOException, InterruptedException {
+        stage = Stage.RESOLVING_UUIDS;
+
+        final List<String> namesToResolve = new ArrayList<>();
+        for (String name : userNamesToFetch) {
+            if (!usersUUIDs.containsKey(name)) {
+                namesToResolve.add(name);
+            }
+        }
+
         PluginLogger.info(I.t("Fetching UUIDs from Mojang..."));
         try {
-            usersUUIDs = UUIDFetcher.fetch(new ArrayList<String>(userNamesToFetch));
+            for (int i = 0; i < namesToResolve.size(); i += UUID_BATCH_SIZE) {
+                final List<String> batch =
+                        namesToResolve.subList(i, Math.min(namesToResolve.size(), i + UUID_BATCH_SIZE));
+                for (Map.Entry<String, UUID> entry : uuidResolver.resolve(batch).entrySet()) {
+                    // The names of the resolver may have another case.
+                    for (String name : batch) {
+                        if (name.equalsIgnoreCase(entry.getKey())) {
+                            usersUUIDs.put(name, entry.getValue());
+                        }
+                    }
+                }
+                saveCheckpoint();
+            }
         } catch (IOException ex) {
             PluginLogger.error(I.t("An error occurred while fetching the UUIDs from Mojang"), ex);
             throw ex;
@@ -444,45 +640,19 @@ public class V3Migrator implements Runnable {
     }
 
     /**
-     * Fetches the UUIDs that could not be retrieved via Mojang's standard API
+     * Reports the players whose UUID could not be retrieved
      *
      * @return true if at least one UUID has been retrieved, false otherwise
      */
-    private boolean fetchMissingUUIDs() throws IOException, InterruptedException {
-        if (usersUUIDs.size() == userNamesToFetch.size()) {
-            return true;
-        }
-        int remainingUsersCount = userNamesToFetch.size() - usersUUIDs.size();
-        PluginLogger.info(I.tn("Mojang did not find UUIDs for {0} player at the current time.",
-                "Mojang did not find UUIDs for {0} players at the current time.", remainingUsersCount));
-        PluginLogger.info(I.t("The Mojang servers limit requests rate at one per second, this may take some time..."));
-
-        try {
-            UUIDFetcher.fetchRemaining(userNamesToFetch, usersUUIDs);
-        } catch (IOException ex) {
-            PluginLogger.error(I.t("An error occurred while fetching the UUIDs from Mojang"));
-            throw ex;
-        } catch (InterruptedException ex) {
-            PluginLogger.error(I.t("The migration worker has been interrupted"));
-            throw ex;
-        }
-
+    private boolean checkMissingUUIDs() {
         if (usersUUIDs.size() != userNamesToFetch.size()) {
             PluginLogger.warning(I.tn("Mojang did not find player data for {0} player",
                     "Mojang did not find player data for {0} players",
                     userNamesToFetch.size() - usersUUIDs.size()));
             PluginLogger.warning(I.t("The following players do not exist or do not have paid accounts :"));
 
-            String missingUsersList = "";
-
-            for (String user : userNamesToFetch) {
-                if (!usersUUIDs.containsKey(user)) {
-                    missingUsersList += user + ", ";
-                }
-            }
-            missingUsersList = missingUsersList;
-
-            PluginLogger.info(missingUsersList);
+            PluginLogger.info(userNamesToFetch.stream().filter(user -> !usersUUIDs.containsKey(user))
+                    .collect(Collectors.joining(", ")));
         }
 
         if (usersUUIDs.size() <= 0) {
@@ -494,25 +664,46 @@ public class V3Migrator implements Runnable {
         return true;
     }
 
-    private void mergeMapData() {
+    /**
+     * Inserts the old maps and posters into the map stores, by batches. After each batch, the
+     * stores are saved and the migrated records written to the checkpoint. Records already
+     * migrated, or whose maps already belong to a player, are skipped.
+     *
+     * @throws IOException if the checkpoint could not be written
+     */
+    private void mergeMapData() throws IOException {
         PluginLogger.info(I.t("Merging map data..."));
+        stage = Stage.MIGRATING;
+        totalRecords = mapsToMigrate.size() + postersToMigrate.size();
+        processedRecords.set(0);
 
         ArrayDeque<OldSavedMap> remainingMaps = new ArrayDeque<>();
         ArrayDeque<OldSavedPoster> remainingPosters = new ArrayDeque<>();
 
         ArrayDeque<Integer> missingMapIds = new ArrayDeque<>();
 
+        final Map<UUID, List<ImageMap>> batch = new HashMap<>();
+        final List<String> batchKeys = new ArrayList<>();
+
         UUID playerUUID;
         OldSavedMap map;
         while (!mapsToMigrate.isEmpty()) {
             map = mapsToMigrate.pop();
+            processedRecords.incrementAndGet();
+            final String key = "map:" + map.getMapId();
             playerUUID = usersUUIDs.get(map.getUserName());
-            if (playerUUID == null) {
+            if (migratedRecords.contains(key) || MapManager.getMap(map.getMapId()) != null) {
+                continue;
+            } else if (playerUUID == null) {
                 remainingMaps.add(map);
             } else if (!map.isMapValid()) {
                 missingMapIds.add((int) map.getMapId());
             } else {
-                MapManager.insertMap(map.toImageMap(playerUUID));
+                batch.computeIfAbsent(playerUUID, uuid -> new ArrayList<>()).add(map.toImageMap(playerUUID));
+                batchKeys.add(key);
+                if (batchKeys.size() >= RECORD_BATCH_SIZE) {
+                    insertBatch(batch, batchKeys);
+                }
             }
         }
         mapsToMigrate.addAll(remainingMaps);
@@ -520,17 +711,26 @@ public class V3Migrator implements Runnable {
         OldSavedPoster poster;
         while (!postersToMigrate.isEmpty()) {
             poster = postersToMigrate.pop();
+            processedRecords.incrementAndGet();
+            final String key = "poster:" + poster.getPosterName();
             playerUUID = usersUUIDs.get(poster.getUserName());
-            if (playerUUID == null) {
+            if (migratedRecords.contains(key) || MapManager.getMap(poster.getMapsIds()[0]) != null) {
+                continue;
+            } else if (playerUUID == null) {
                 remainingPosters.add(poster);
             } else if (!poster.isMapValid()) {
                 missingMapIds.addAll(Arrays.stream(ArrayUtils.toObject(poster.getMapsIds())).map(id -> (int) id)
                         .collect(Collectors.toList()));
             } else {
-                MapManager.insertMap(poster.toImageMap(playerUUID));
+                batch.computeIfAbsent(playerUUID, uuid -> new ArrayList<>()).add(poster.toImageMap(playerUUID));
+                batchKeys.add(key);
+                if (batchKeys.size() >= RECORD_BATCH_SIZE) {
+                    insertBatch(batch, batchKeys);
+                }
             }
         }
         postersToMigrate.addAll(remainingPosters);
+        insertBatch(batch, batchKeys);
 
         if (!missingMapIds.isEmpty()) {
             PluginLogger.warning(I.tn("{0} registered minecraft map is missing from the save.",
@@ -543,10 +743,55 @@ public class V3Migrator implements Runnable {
         }
     }
 
+    /**
+     * Inserts a batch of maps, with one insertion per player, then saves the stores and the
+     * checkpoint.
+     *
+     * @param batch     The maps of the batch, by player.
+     * @param batchKeys The keys of the records of the batch.
+     * @throws IOException if the checkpoint could not be written
+     */
+    private void insertBatch(Map<UUID, List<ImageMap>> batch, List<String> batchKeys) throws IOException {
+        if (batchKeys.isEmpty()) {
+            return;
+        }
+
+        for (Map.Entry<UUID, List<ImageMap>> entry : batch.entrySet()) {
+            MapManager.insertMaps(entry.getKey(), entry.getValue());
+        }
+        MapManager.save();
+
+        migratedRecords.addAll(batchKeys);
+        saveCheckpoint();
+
+        batch.clear();
+        batchKeys.clear();
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public int getProcessedRecords() {
+        return processedRecords.get();
+    }
+
+    public int getTotalRecords() {
+        return totalRecords;
+    }
+
+    /**
+     * @return the time since the migration started, in milliseconds.
+     */
+    public long getElapsedTime() {
+        return startTime == 0 ? 0 : System.currentTimeMillis() - startTime;
+    }
+
     /* ****** Utils ***** */
 
     private void saveChanges() {
         PluginLogger.info(I.t("Saving changes..."));
+        stage = Stage.SAVING;
         MapManager.save();
     }
 
@@ -612,4 +857,25 @@ public class V3Migrator implements Runnable {
         setRunning(false);
     }
 
+    /**
+     * The steps of the migration. ABORTED means it stopped before making any change, as there
+     * was nothing to migrate or it could not be done safely.
+     */
+    public enum Stage {
+        PREPARING, BACKING_UP, RESOLVING_UUIDS, MIGRATING, SAVING, DONE, FAILED, ABORTED
+    }
+
+    /**
+     * Resolves the UUIDs of player names, for the migration. Called on the migration thread.
+     */
+    @FunctionalInterface
+    public interface UUIDResolver {
+        /**
+         * @param names The player names.
+         * @return the UUIDs of the names that could be resolved.
+         * @throws IOException          if the names could not be resolved.
+         * @throws InterruptedException if the thread was interrupted.
+         */
+        Map<String, UUID> resolve(Collection<String> names) throws IOException, InterruptedException;
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.ui;
+
+import fr.moribus.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.map.PosterMap;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.MapMeta;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Puts the maps of posters in their item frames over several ticks, with at most
+ * {@code placement-frames-per-tick} frames filled each tick, so large posters don't freeze the
+ * server. Frames are emptied right away, as the poster is given back at once.
+ */
+public final class FramePlacer {
+    private static final Queue<Placement> placements = new ArrayDeque<>();
+    private static BukkitTask placementTask = null;
+    private static long currentTick = 0;
+
+    private FramePlacer() {
+    }
+
+    public static void exit() {
+        // Finishes the pending placements, so no poster is left half placed.
+        while (!placements.isEmpty()) {
+            placements.poll().apply();
+        }
+        if (placementTask != null) {
+            placementTask.cancel();
+            placementTask = null;
+        }
+    }
+
+    /**
+     * Creates the map items of a poster, once for all its frames.
+     *
+     * @param poster The poster.
+     * @return the map item of each map ID of the poster.
+     */
+    public static Map<Integer, ItemStack> createMapItems(PosterMap poster) {
+        final Map<Integer, ItemStack> items = new HashMap<>();
+        final ItemStack base = new ItemStack(Material.FILLED_MAP, 1);
+        for (int mapID : poster.getMapsIDs()) {
+            final ItemStack item = base.clone();
+            final MapMeta meta = (MapMeta) item.getItemMeta();
+            meta.setMapId(mapID);
+            item.setItemMeta(meta);
+            items.put(mapID, item);
+        }
+        return items;
+    }
+
+    /**
+     * Puts an item in a frame.
+     *
+     * @param frame The item frame.
+     * @param item  The item.
+     * @param delay The minimal number of ticks to wait.
+     */
+    public static void place(ItemFrame frame, ItemStack item, long delay) {
+        placements.add(new Placement(frame, item, currentTick + delay));
+        if (placementTask == null) {
+            placementTask = Bukkit.getScheduler().runTaskTimer(ImageOnMap.getPlugin(), FramePlacer::tick, 1L, 1L);
+        }
+    }
+
+    /**
+     * Empties a frame now, and cancels the pending placements in it.
+     *
+     * @param frame The item frame.
+     */
+    public static void remove(ItemFrame frame) {
+        placements.removeIf(placement -> placement.frame.equals(frame));
+        frame.setItem(null);
+    }
+
+    public static int getPendingCount() {
+        return placements.size();
+    }
+
+    private static void tick() {
+        currentTick++;
+
+        int budget = Math.max(1, PluginConfiguration.PLACEMENT_FRAMES_PER_TICK.get());
+        while (budget > 0 && !placements.isEmpty() && placements.peek().tick <= currentTick) {
+            placements.poll().apply();
+            budget--;
+        }
+
+        if (placements.isEmpty()) {
+            placementTask.cancel();
+            placementTask = null;
+        }
+    }
+
+    private static final class Placement {
+        private final ItemFrame frame;
+        private final ItemStack item;
+        private final long tick;
+
+        private Placement(ItemFrame frame, ItemStack item, long tick) {
+            this.frame = frame;
+            this.item = item;
+            this.tick = tick;
+        }
+
+        private void apply() {
+            if (frame.isValid()) {
+                frame.setItem(item);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.ui;
+
+import fr.zcraft.quartzlib.core.QuartzLib;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.hanging.HangingBreakEvent;
+import org.bukkit.event.hanging.HangingPlaceEvent;
+import org.bukkit.event.world.EntitiesLoadEvent;
+import org.bukkit.event.world.EntitiesUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+/**
+ * An index of the loaded item frames by block position, so the frames of a poster can be found
+ * without scanning the entities of a chunk for each of them.
+ *
+ * <p>The index follows the entities loaded and unloaded with the chunks, and the frames placed
+ * and broken. Frames removed in any other way are dropped from the index when looked up.</p>
+ */
+public class ItemFrameIndex implements Listener {
+    private static final Map<UUID, Map<Long, List<ItemFrame>>> frames = new HashMap<>();
+
+    public static void init() {
+        QuartzLib.registerEvents(new ItemFrameIndex());
+
+        for (World world : Bukkit.getWorlds()) {
+            for (ItemFrame frame : world.getEntitiesByClass(ItemFrame.class)) {
+                add(frame);
+            }
+        }
+    }
+
+    public static void exit() {
+        frames.clear();
+    }
+
+    /**
+     * Gets the item frames hanging in a block.
+     *
+     * @param location A location in the block.
+     * @return the item frames in the block, whatever their facing.
+     */
+    public static List<ItemFrame> getFramesAt(Location location) {
+        final Map<Long, List<ItemFrame>> worldFrames = frames.get(location.getWorld().getUID());
+        if (worldFrames == null) {
+            return Collections.emptyList();
+        }
+
+        final long key = toKey(location);
+        final List<ItemFrame> blockFrames = worldFrames.get(key);
+        if (blockFrames == null) {
+            return Collections.emptyList();
+        }
+
+        blockFrames.removeIf(frame -> !frame.isValid());
+        if (blockFrames.isEmpty()) {
+            worldFrames.remove(key);
+            return Collections.emptyList();
+        }
+        return blockFrames;
+    }
+
+    public static int size() {
+        int size = 0;
+        for (Map<Long, List<ItemFrame>> worldFrames : frames.values()) {
+            for (List<ItemFrame> blockFrames : worldFrames.values()) {
+                size += blockFrames.size();
+            }
+        }
+        return size;
+    }
+
+    private static long toKey(Location location) {
+        return ((long) location.getBlockX() & 0x3FFFFFF) << 38
+                | ((long) location.getBlockZ() & 0x3FFFFFF) << 12
+                | ((long) location.getBlockY() & 0xFFF);
+    }
+
+    private static void add(ItemFrame frame) {
+        final List<ItemFrame> blockFrames = frames
+                .computeIfAbsent(frame.getWorld().getUID(), world -> new HashMap<>())
+                .computeIfAbsent(toKey(frame.getLocation()), key -> new ArrayList<>(1));
+        if (!blockFrames.contains(frame)) {
+            blockFrames.add(frame);
+        }
+    }
+
+    private static void remove(ItemFrame frame) {
+        final Map<Long, List<ItemFrame>> worldFrames = frames.get(frame.getWorld().getUID());
+        if (worldFrames == null) {
+            return;
+        }
+
+        final long key = toKey(frame.getLocation());
+        final List<ItemFrame> blockFrames = worldFrames.get(key);
+        if (blockFrames != null && blockFrames.remove(frame) && blockFrames.isEmpty()) {
+            worldFrames.remove(key);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitiesLoad(EntitiesLoadEvent event) {
+        for (Entity entity : event.getEntities()) {
+            if (entity instanceof ItemFrame) {
+                add((ItemFrame) entity);
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitiesUnload(EntitiesUnloadEvent event) {
+        for (Entity entity : event.getEntities()) {
+            if (entity instanceof ItemFrame) {
+                remove((ItemFrame) entity);
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onHangingPlace(HangingPlaceEvent event) {
+        if (event.getEntity() instanceof ItemFrame) {
+            add((ItemFrame) event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitySpawn(EntitySpawnEvent event) {
+        if (event.getEntity() instanceof ItemFrame) {
+            add((ItemFrame) event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onHangingBreak(HangingBreakEvent event) {
+        if (event.getEntity() instanceof ItemFrame) {
+            remove((ItemFrame) event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        frames.remove(event.getWorld().getUID());
+    }
+}
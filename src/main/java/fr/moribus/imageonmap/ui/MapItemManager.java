@@ -143,19 +143,26 @@ public class MapItemManager implements Listener {
     }
 
     public static ItemStack createMapItem(SingleMap map) {
-        return createMapItem(map.getMapsIDs()[0], map.getName(), false);
+        return createMapItem(map, false);
     }
 
     public static ItemStack createMapItem(SingleMap map, boolean goldTitle) {
-        return createMapItem(map.getMapsIDs()[0], map.getName(), false, goldTitle);
+        return createSingleMapItem(map, goldTitle);
     }
 
     public static ItemStack createMapItem(PosterMap map, int index) {
-        return createMapItem(map.getMapIdAt(index), getMapTitle(map, index), true);
+        return MapItemTemplates.get(map, "part:" + index,
+                () -> createMapItem(map.getMapIdAt(index), getMapTitle(map, index), true));
     }
 
     public static ItemStack createMapItem(PosterMap map, int x, int y) {
-        return createMapItem(map.getMapIdAt(x, y), getMapTitle(map, y, x), true);
+        return MapItemTemplates.get(map, "part:" + x + "," + y,
+                () -> createMapItem(map.getMapIdAt(x, y), getMapTitle(map, y, x), true));
+    }
+
+    private static ItemStack createSingleMapItem(ImageMap map, boolean goldTitle) {
+        return MapItemTemplates.get(map, goldTitle ? "single:gold" : "single",
+                () -> createMapItem(map.getMapsIDs()[0], map.getName(), false, goldTitle));
     }
 
     public static ItemStack createMapItem(int mapID, String text, boolean isMapPart) {
@@ -226,7 +233,7 @@ public class MapItemManager implements Listener {
                 throw new ArrayIndexOutOfBoundsException(); // Coherence
             }
 
-            return createMapItem(map.getMapsIDs()[0], map.getName(), false);
+            return createSingleMapItem(map, false);
         }
     }
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.ui;
+
+import fr.moribus.imageonmap.map.ImageMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Keeps the items built for each image (given maps, poster parts, splatter maps, GUI icons), so
+ * they are built once, with their translations and lore, then cloned each time they are needed.
+ *
+ * <p>The templates of an image are dropped when it is renamed or deleted.</p>
+ */
+public final class MapItemTemplates {
+    /**
+     * The templates of each image, by the first Minecraft map ID of the image, then by variant.
+     */
+    private static final Map<Integer, Map<String, ItemStack>> templates = new ConcurrentHashMap<>();
+
+    private MapItemTemplates() {
+    }
+
+    public static void exit() {
+        templates.clear();
+    }
+
+    /**
+     * Returns an item of an image, built only the first time it is requested.
+     *
+     * @param map     The image.
+     * @param variant The name of the item among the items of this image, including the locale of its
+     *                texts if they are not in the default one.
+     * @param factory Builds the item if there is no template yet.
+     * @return a copy of the template, the caller can modify it.
+     */
+    public static ItemStack get(ImageMap map, String variant, Supplier<ItemStack> factory) {
+        return templates.computeIfAbsent(getKey(map), key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(variant, key -> factory.get())
+                .clone();
+    }
+
+    /**
+     * Drops the templates of an image, because its name or its existence changed.
+     *
+     * @param map The image.
+     */
+    public static void invalidate(ImageMap map) {
+        templates.remove(getKey(map));
+    }
+
+    private static int getKey(ImageMap map) {
+        return map.getMapsIDs()[0];
+    }
+}
@@ -42,7 +42,6 @@ import fr.zcraft.quartzlib.tools.world.WorldUtils;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.BlockFace;
-import org.bukkit.entity.Entity;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
@@ -145,16 +144,7 @@ public class PosterOnASurface {
     }
 
     public static ItemFrame getMapFrameAt(FlatLocation location, PosterMap map) {
-        Entity[] entities = location.getChunk().getEntities();
-
-        for (Entity entity : entities) {
-            if (!(entity instanceof ItemFrame)) {
-                continue;
-            }
-            if (!WorldUtils.blockEquals(location, entity.getLocation())) {
-                continue;
-            }
-            ItemFrame frame = (ItemFrame) entity;
+        for (ItemFrame frame : ItemFrameIndex.getFramesAt(location)) {
             if (frame.getFacing() != location.getFacing()) {
                 continue;
             }
@@ -172,16 +162,7 @@ public class PosterOnASurface {
     }
 
     public static ItemFrame getEmptyFrameAt(Location location, BlockFace facing) {
-        Entity[] entities = location.getChunk().getEntities();
-
-        for (Entity entity : entities) {
-            if (!(entity instanceof ItemFrame)) {
-                continue;
-            }
-            if (!WorldUtils.blockEquals(location, entity.getLocation())) {
-                continue;
-            }
-            ItemFrame frame = (ItemFrame) entity;
+        for (ItemFrame frame : ItemFrameIndex.getFramesAt(location)) {
             if (frame.getFacing() != facing) {
                 continue;
             }
@@ -38,11 +38,9 @@ package fr.moribus.imageonmap.ui;
 
 import fr.moribus.imageonmap.map.PosterMap;
 import fr.zcraft.quartzlib.tools.world.FlatLocation;
-import fr.zcraft.quartzlib.tools.world.WorldUtils;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.BlockFace;
-import org.bukkit.entity.Entity;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.inventory.ItemStack;
 
@@ -83,16 +81,7 @@ public class PosterWall {
     }
 
     public static ItemFrame getMapFrameAt(FlatLocation location, PosterMap map) {
-        Entity[] entities = location.getChunk().getEntities();
-
-        for (Entity entity : entities) {
-            if (!(entity instanceof ItemFrame)) {
-                continue;
-            }
-            if (!WorldUtils.blockEquals(location, entity.getLocation())) {
-                continue;
-            }
-            ItemFrame frame = (ItemFrame) entity;
+        for (ItemFrame frame : ItemFrameIndex.getFramesAt(location)) {
             if (frame.getFacing() != location.getFacing()) {
                 continue;
             }
@@ -110,16 +99,7 @@ public class PosterWall {
     }
 
     public static ItemFrame getEmptyFrameAt(Location location, BlockFace facing) {
-        Entity[] entities = location.getChunk().getEntities();
-
-        for (Entity entity : entities) {
-            if (!(entity instanceof ItemFrame)) {
-                continue;
-            }
-            if (!WorldUtils.blockEquals(location, entity.getLocation())) {
-                continue;
-            }
-            ItemFrame frame = (ItemFrame) entity;
+        for (ItemFrame frame : ItemFrameIndex.getFramesAt(location)) {
             if (frame.getFacing() != facing) {
                 continue;
             }
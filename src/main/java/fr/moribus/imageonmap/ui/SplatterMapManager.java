@@ -37,6 +37,7 @@
 package fr.moribus.imageonmap.ui;
 
 import com.google.common.collect.ImmutableMap;
+import fr.moribus.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.image.MapInitEvent;
 import fr.moribus.imageonmap.map.ImageMap;
 import fr.moribus.imageonmap.map.MapManager;
@@ -45,18 +46,16 @@ import fr.zcraft.quartzlib.components.i18n.I;
 import fr.zcraft.quartzlib.tools.PluginLogger;
 import fr.zcraft.quartzlib.tools.items.GlowEffect;
 import fr.zcraft.quartzlib.tools.items.ItemStackBuilder;
-import fr.zcraft.quartzlib.tools.runners.RunTask;
 import fr.zcraft.quartzlib.tools.text.MessageSender;
 import fr.zcraft.quartzlib.tools.world.FlatLocation;
 import fr.zcraft.quartzlib.tools.world.WorldUtils;
-import net.minecraft.nbt.NBTList;
-import net.minecraft.nbt.NBTTagCompound;
+import java.util.Map;
 import org.bukkit.ChatColor;
 import org.bukkit.Color;
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
 import org.bukkit.Rotation;
 import org.bukkit.block.BlockFace;
-import org.bukkit.craftbukkit.v1_18_R1.inventory.CraftItemStack;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
@@ -64,15 +63,30 @@ import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.inventory.meta.MapMeta;
+import org.bukkit.persistence.PersistentDataType;
 
 
 public abstract class SplatterMapManager {
+    /**
+     * The delay before the maps are put in the frames, in ticks, so the interaction placing the
+     * poster is over.
+     */
+    private static final long PLACEMENT_DELAY = 5L;
+
+    /**
+     * The persistent data marking the splatter maps.
+     */
+    private static final NamespacedKey SPLATTER_KEY = new NamespacedKey(ImageOnMap.getPlugin(), "splatter");
+    private static final byte SPLATTER_MARKER = 1;
+
     private SplatterMapManager() {
     }
 
     public static ItemStack makeSplatterMap(PosterMap map) {
+        return MapItemTemplates.get(map, "splatter", () -> buildSplatterMap(map));
+    }
 
-
+    private static ItemStack buildSplatterMap(PosterMap map) {
         final ItemStack splatter = new ItemStackBuilder(Material.FILLED_MAP).title(ChatColor.GOLD, map.getName())
                 .title(ChatColor.DARK_GRAY, " - ").title(ChatColor.GRAY, I.t("Splatter Map"))
                 .title(ChatColor.DARK_GRAY, " - ")
@@ -102,19 +116,22 @@ public abstract class SplatterMapManager {
         final MapMeta meta = (MapMeta) splatter.getItemMeta();
         meta.setMapId(map.getMapIdAt(0));
         meta.setColor(Color.GREEN);
+        meta.getPersistentDataContainer().set(SPLATTER_KEY, PersistentDataType.BYTE, SPLATTER_MARKER);
         splatter.setItemMeta(meta);
 
-        return addSplatterAttribute(splatter);
+        GlowEffect.addGlow(splatter);
+        return splatter;
     }
 
     /**
      * To identify image on maps for the auto-splattering to work, we mark the
-     * items using an enchantment maps are not supposed to have (Mending).
+     * items with a persistent data marker, and make them glow using an
+     * enchantment maps are not supposed to have (Mending).
      *
      * <p>
-     * Then we check if the map is enchanted at all to know if it's a splatter
-     * map. This ensure compatibility with old splatter maps from 3.x, where
-     * zLib's glow effect was used.
+     * Maps without the marker are still splatter maps if they are enchanted
+     * at all. This ensure compatibility with the splatter maps made before the
+     * marker, down to the ones from 3.x, where zLib's glow effect was used.
      * </p>
      * An AttributeModifier (using zLib's attributes system) is not used,
      * because Minecraft (or Spigot) removes them from maps in 1.14+, so that
@@ -125,30 +142,33 @@ public abstract class SplatterMapManager {
      * @return The modified item stack. The instance may be different if the passed item stack is not a craft itemstack.
      */
     public static ItemStack addSplatterAttribute(final ItemStack itemStack) {
+        final ItemMeta meta = itemStack.getItemMeta();
+        if (meta != null) {
+            meta.getPersistentDataContainer().set(SPLATTER_KEY, PersistentDataType.BYTE, SPLATTER_MARKER);
+            itemStack.setItemMeta(meta);
+        }
         GlowEffect.addGlow(itemStack);
         return itemStack;
     }
 
     /**
-     * Checks if an item have the splatter attribute set (i.e. if the item is
-     * enchanted in any way).
+     * Checks if an item have the splatter attribute set (i.e. if the item has
+     * the splatter marker, or is enchanted in any way).
      *
      * @param itemStack The item to check.
      * @return True if the attribute was detected.
      */
     public static boolean hasSplatterAttributes(ItemStack itemStack) {
-        try {
-            net.minecraft.world.item.ItemStack mcStack = CraftItemStack.asNMSCopy(itemStack);
-            final NBTTagCompound nbt = mcStack.getTag();
-            if (nbt == null) {
-                PluginLogger.error("Item has no NBT!");
-                return false;
-            }
-            return nbt.hasKey("Enchantments");
-        } catch (Exception e) {
-            PluginLogger.error("Unable to get Splatter Map attribute on item", e);
+        if (itemStack == null || itemStack.getType() != Material.FILLED_MAP || !itemStack.hasItemMeta()) {
             return false;
         }
+        return hasSplatterAttributes(itemStack.getItemMeta());
+    }
+
+    private static boolean hasSplatterAttributes(ItemMeta meta) {
+        return meta != null
+                && (meta.getPersistentDataContainer().has(SPLATTER_KEY, PersistentDataType.BYTE)
+                || meta.hasEnchants());
     }
 
     /**
@@ -158,10 +178,14 @@ public abstract class SplatterMapManager {
      * @return True if is a splatter map
      */
     public static boolean isSplatterMap(ItemStack itemStack) {
-        if (itemStack == null) {
+        if (itemStack == null || itemStack.getType() != Material.FILLED_MAP || !itemStack.hasItemMeta()) {
             return false;
         }
-        return hasSplatterAttributes(itemStack) && MapManager.managesMap(itemStack);
+
+        // The metadata is a copy: it is read once for both checks.
+        final ItemMeta meta = itemStack.getItemMeta();
+        return meta instanceof MapMeta && ((MapMeta) meta).hasMapId()
+                && MapManager.managesMap(((MapMeta) meta).getMapId()) && hasSplatterAttributes(meta);
     }
 
 
@@ -175,9 +199,8 @@ public abstract class SplatterMapManager {
     public static boolean hasSplatterMap(Player player, PosterMap map) {
         Inventory playerInventory = player.getInventory();
 
-        for (int i = 0; i < playerInventory.getSize(); ++i) {
-            ItemStack item = playerInventory.getItem(i);
-            if (isSplatterMap(item) && map.managesMap(item)) {
+        for (int slot : MapManager.getMapSlots(playerInventory, map)) {
+            if (isSplatterMap(playerInventory.getItem(slot))) {
                 return true;
             }
         }
@@ -200,6 +223,7 @@ public abstract class SplatterMapManager {
         }
         PosterMap poster = (PosterMap) map;
         PosterWall wall = new PosterWall();
+        final Map<Integer, ItemStack> items = FramePlacer.createMapItems(poster);
 
         if (startFrame.getFacing().equals(BlockFace.DOWN) || startFrame.getFacing().equals(BlockFace.UP)) {
             // If it is on floor or ceiling
@@ -236,15 +260,7 @@ public abstract class SplatterMapManager {
                 }
                 //Rotation management relative to player rotation the default position is North,
                 // when on ceiling we flipped the rotation
-                net.minecraft.world.item.ItemStack mcStack =
-                        CraftItemStack.asNMSCopy(new ItemStack(Material.FILLED_MAP, 1));
-                NBTTagCompound compound = new NBTTagCompound();
-                compound.setInt("map", id);
-                mcStack.setTag(compound);
-
-                RunTask.later(() -> {
-                    frame.setItem(CraftItemStack.asBukkitCopy(mcStack));
-                }, 5L);
+                FramePlacer.place(frame, items.get(id), PLACEMENT_DELAY);
 
                 if (i == 0) {
                     //First map need to be rotate one time CounterClockwise
@@ -278,8 +294,6 @@ public abstract class SplatterMapManager {
                         throw new IllegalStateException("Unexpected value: " + bf);
                 }
 
-
-                MapInitEvent.initMap(id);
                 i++;
             }
         } else {
@@ -301,23 +315,16 @@ public abstract class SplatterMapManager {
             for (ItemFrame frame : wall.frames) {
 
                 int id = poster.getMapIdAtReverseY(i);
-
-                net.minecraft.world.item.ItemStack mcStack =
-                        CraftItemStack.asNMSCopy(new ItemStack(Material.FILLED_MAP, 1));
-                NBTTagCompound compound = new NBTTagCompound();
-                compound.setInt("map", id);
-                mcStack.setTag(compound);
-
-                RunTask.later(() -> {
-                    frame.setItem(CraftItemStack.asBukkitCopy(mcStack));
-                }, 5L);
+                FramePlacer.place(frame, items.get(id), PLACEMENT_DELAY);
 
                 //Force reset of rotation
                 frame.setRotation(Rotation.NONE);
-                MapInitEvent.initMap(id);
                 ++i;
             }
         }
+
+        // All the tiles are loaded by a single request.
+        MapInitEvent.initMaps(poster.getMapsIDs());
         return true;
     }
 
@@ -365,7 +372,7 @@ public abstract class SplatterMapManager {
 
         for (ItemFrame frame : matchingFrames) {
             if (frame != null) {
-                frame.setItem(null);
+                FramePlacer.remove(frame);
             }
         }
 